@@ -0,0 +1,101 @@
+package com.github.sylvek.wsmqttfwd;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocket13FrameDecoder;
+import io.netty.handler.codec.http.websocketx.WebSocket13FrameEncoder;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * The frame codec of the client pipeline: the Netty one installed by the handshake followed by the frame conversion handlers
+ * of the server, against {@link BinaryFrameDecoder} and {@link BinaryFrameEncoder}.
+ * The decoder reads the masked frames of a batch of PUBLISH packets received in one buffer, the encoder writes PUBLISH packets.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BinaryFrameCodecBenchmark {
+
+    private static final int BATCH = 16;
+    private static final int MAX_FRAME_PAYLOAD_LENGTH = 65536;
+
+    private static final byte[] PUBLISH = {0x30, 22, 0, 14, 'd', 'e', 'v', 'i', 'c', 'e', 's', '/', 'i', 'd', '/', 't', 'm', 'p', '2', '1', '.', '5', 'C', '!'};
+
+    @Param({"netty", "binary"})
+    public String codec;
+
+    private EmbeddedChannel decoder;
+    private EmbeddedChannel encoder;
+
+    // the masked frames as sent by a client, copied for each read since the payload is unmasked in place
+    private ByteBuf frames;
+
+    @Setup
+    public void setUp()
+    {
+        if ("binary".equals(codec)) {
+            decoder = new EmbeddedChannel(new BinaryFrameDecoder(MAX_FRAME_PAYLOAD_LENGTH));
+            encoder = new EmbeddedChannel(new BinaryFrameEncoder());
+        } else {
+            decoder = new EmbeddedChannel(new WebSocket13FrameDecoder(true, false, MAX_FRAME_PAYLOAD_LENGTH), new Server.WebSocketFrameToByteBufDecoder());
+            encoder = new EmbeddedChannel(new WebSocket13FrameEncoder(false), new Server.ByteBufToWebSocketFrameEncoder());
+        }
+
+        final EmbeddedChannel client = new EmbeddedChannel(new WebSocket13FrameEncoder(true));
+        for (int i = 0; i < BATCH; i++) {
+            client.writeOutbound(new BinaryWebSocketFrame(Unpooled.wrappedBuffer(PUBLISH)));
+        }
+        frames = Unpooled.buffer();
+        ByteBuf frame;
+        while ((frame = (ByteBuf) client.readOutbound()) != null) {
+            frames.writeBytes(frame);
+            frame.release();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int decode()
+    {
+        decoder.writeInbound(decoder.alloc().buffer(frames.readableBytes()).writeBytes(frames, frames.readerIndex(), frames.readableBytes()));
+        return drain(decoder, true);
+    }
+
+    @Benchmark
+    public int encode()
+    {
+        encoder.writeOutbound(Unpooled.wrappedBuffer(PUBLISH));
+        return drain(encoder, false);
+    }
+
+    private static int drain(EmbeddedChannel channel, boolean inbound)
+    {
+        int bytes = 0;
+        Object msg;
+        while ((msg = inbound ? channel.readInbound() : channel.readOutbound()) != null) {
+            bytes += ((ByteBuf) msg).readableBytes();
+            ReferenceCountUtil.release(msg);
+        }
+        return bytes;
+    }
+}
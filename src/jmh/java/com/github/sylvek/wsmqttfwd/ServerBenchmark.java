@@ -0,0 +1,265 @@
+package com.github.sylvek.wsmqttfwd;
+
+import com.github.sylvek.wsmqttfwd.decoder.PacketSplitter;
+import com.github.sylvek.wsmqttfwd.decoder.Utils;
+import com.github.sylvek.wsmqttfwd.message.AbstractMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.URI;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalServerChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketClientHandshaker;
+import io.netty.handler.codec.http.websocketx.WebSocketClientHandshakerFactory;
+import io.netty.handler.codec.http.websocketx.WebSocketVersion;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * The whole forwarder over the in-JVM transport: a WebSocket client connected to the Server listening on a local address,
+ * forwarded to a stand-in broker answering the CONNECT, PINGREQ and QoS1 PUBLISH packets and sending the QoS0 PUBLISH packets back.
+ * Each benchmark waits for the answers, so it measures the round trip through the client and the broker pipelines.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServerBenchmark {
+
+    private static final int BATCH = 64;
+
+    private static final byte[] CONNECT = {0x10, 16, 0, 4, 'M', 'Q', 'T', 'T', 4, 2, 0, 60, 0, 4, 'b', 'e', 'n', 'c'};
+    private static final byte[] PUBLISH_QOS0 = {0x30, 22, 0, 14, 'd', 'e', 'v', 'i', 'c', 'e', 's', '/', 'i', 'd', '/', 't', 'm', 'p', '2', '1', '.', '5', 'C', '!'};
+    private static final byte[] PUBLISH_QOS1 = {0x32, 24, 0, 14, 'd', 'e', 'v', 'i', 'c', 'e', 's', '/', 'i', 'd', '/', 't', 'm', 'p', 0, 1, '2', '1', '.', '5', 'C', '!'};
+    private static final byte[] PINGREQ = {(byte) 0xC0, 0};
+
+    private static final byte[] CONNACK = {0x20, 2, 0, 0};
+    private static final byte[] PINGRESP = {(byte) 0xD0, 0};
+
+    private EventLoopGroup group;
+    private Server server;
+    private Channel client;
+
+    // one permit per packet received by the client
+    private final Semaphore received = new Semaphore(0);
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        group = new NioEventLoopGroup(1);
+        final LocalAddress brokerAddress = new LocalAddress("benchmark-broker");
+        final LocalAddress serverAddress = new LocalAddress("benchmark-server");
+        new ServerBootstrap()
+                .group(group)
+                .channel(LocalServerChannel.class)
+                .childHandler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) throws Exception
+                    {
+                        ch.pipeline().addLast("splitter", new PacketSplitter());
+                        ch.pipeline().addLast("broker", new StandInBroker());
+                    }
+                })
+                .bind(brokerAddress).sync();
+
+        server = new Server();
+        server.initServer(0, "localhost", 0, null);
+        server.setLocalTransport(serverAddress, brokerAddress);
+        server.startServer();
+
+        final WebSocketClientHandshaker handshaker = WebSocketClientHandshakerFactory.newHandshaker(new URI("ws://localhost/mqtt"),
+                WebSocketVersion.V13, "mqtt", false, new DefaultHttpHeaders());
+        client = new Bootstrap()
+                .group(group)
+                .channel(LocalChannel.class)
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) throws Exception
+                    {
+                        ch.pipeline().addLast("http", new HttpClientCodec());
+                        ch.pipeline().addLast("aggregator", new HttpObjectAggregator(65536));
+                        ch.pipeline().addLast("client", new Client(handshaker));
+                    }
+                })
+                .connect(serverAddress).sync().channel();
+        // the handshake response
+        awaitPackets(1);
+        send(CONNECT);
+        awaitPackets(1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception
+    {
+        client.close().sync();
+        server.stopServer();
+        group.shutdownGracefully().sync();
+    }
+
+    @Benchmark
+    public void pingReq() throws Exception
+    {
+        send(PINGREQ);
+        awaitPackets(1);
+    }
+
+    @Benchmark
+    public void publishQos1() throws Exception
+    {
+        send(PUBLISH_QOS1);
+        awaitPackets(1);
+    }
+
+    /**
+     * QoS0 PUBLISH packets sent back by the broker, written by batches as a device streaming its measures.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void publishQos0() throws Exception
+    {
+        for (int i = 0; i < BATCH; i++) {
+            client.write(new BinaryWebSocketFrame(Unpooled.wrappedBuffer(PUBLISH_QOS0)));
+        }
+        client.flush();
+        awaitPackets(BATCH);
+    }
+
+    private void send(byte[] packet)
+    {
+        client.writeAndFlush(new BinaryWebSocketFrame(Unpooled.wrappedBuffer(packet)));
+    }
+
+    private void awaitPackets(int packets) throws InterruptedException
+    {
+        if (!received.tryAcquire(packets, 10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("no answer from the forwarder");
+        }
+    }
+
+    private class Client extends ChannelInboundHandlerAdapter {
+
+        private final WebSocketClientHandshaker handshaker;
+
+        Client(WebSocketClientHandshaker handshaker)
+        {
+            this.handshaker = handshaker;
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception
+        {
+            handshaker.handshake(ctx.channel());
+            super.channelActive(ctx);
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception
+        {
+            try {
+                if (!handshaker.isHandshakeComplete()) {
+                    handshaker.finishHandshake(ctx.channel(), (FullHttpResponse) msg);
+                    received.release();
+                } else if (msg instanceof BinaryWebSocketFrame) {
+                    // a frame may hold several packets
+                    final ByteBuf in = ((BinaryWebSocketFrame) msg).content();
+                    int packets = 0;
+                    while (in.isReadable()) {
+                        in.skipBytes(Utils.packetLength(in));
+                        packets++;
+                    }
+                    received.release(packets);
+                }
+            } finally {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+    }
+
+    /**
+     * Answers the CONNECT, PINGREQ and QoS1 PUBLISH packets and sends the QoS0 PUBLISH packets back, as to a subscriber of their topic.
+     * The QoS0 packets of a batch are sent back in one buffer: the LocalChannel of Netty 4.0 loses the read request of the forwarder
+     * once more than 8 broker messages wait to be read (reader stack depth), a TCP stream would deliver them in a few chunks anyway.
+     */
+    private static class StandInBroker extends ChannelInboundHandlerAdapter {
+
+        private ByteBuf echoes;
+        private int pending;
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception
+        {
+            final ByteBuf in = (ByteBuf) msg;
+            final byte h1 = in.getByte(in.readerIndex());
+            switch ((byte) ((h1 & 0xF0) >> 4)) {
+                case AbstractMessage.CONNECT:
+                    ctx.writeAndFlush(Unpooled.wrappedBuffer(CONNACK));
+                    break;
+                case AbstractMessage.PINGREQ:
+                    ctx.writeAndFlush(Unpooled.wrappedBuffer(PINGRESP));
+                    break;
+                case AbstractMessage.PUBLISH:
+                    if ((h1 & 0x06) == 0) {
+                        if (echoes == null) {
+                            echoes = ctx.alloc().buffer(BATCH * in.readableBytes());
+                        }
+                        echoes.writeBytes(in, in.readerIndex(), in.readableBytes());
+                        if (++pending == BATCH) {
+                            ctx.writeAndFlush(echoes);
+                            echoes = null;
+                            pending = 0;
+                        }
+                        break;
+                    }
+                    final int topicIndex = Utils.variableHeaderIndex(in);
+                    final int messageID = in.getUnsignedShort(topicIndex + 2 + in.getUnsignedShort(topicIndex));
+                    ctx.writeAndFlush(ctx.alloc().buffer(4).writeByte(0x40).writeByte(2).writeShort(messageID));
+                    break;
+                default:
+                    break;
+            }
+            in.release();
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception
+        {
+            if (echoes != null) {
+                echoes.release();
+                echoes = null;
+            }
+            super.channelInactive(ctx);
+        }
+    }
+}
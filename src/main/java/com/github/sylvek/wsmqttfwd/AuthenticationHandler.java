@@ -1,22 +1,30 @@
 package com.github.sylvek.wsmqttfwd;
 
 import com.github.sylvek.wsmqttfwd.decoder.ConnectDecoder;
-import com.github.sylvek.wsmqttfwd.decoder.PublishDecoder;
+import com.github.sylvek.wsmqttfwd.decoder.PacketView;
 import com.github.sylvek.wsmqttfwd.decoder.SubscribeDecoder;
-import com.github.sylvek.wsmqttfwd.message.PublishMessage;
 import com.github.sylvek.wsmqttfwd.message.SubscribeMessage;
 import com.github.sylvek.wsmqttfwd.decoder.Utils;
 import com.github.sylvek.wsmqttfwd.message.ConnectMessage;
+import com.github.sylvek.wsmqttfwd.encoder.PacketEncoder;
+import com.github.sylvek.wsmqttfwd.message.ConnAckMessage;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufUtil;
 import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.util.AttributeKey;
+import io.netty.util.CharsetUtil;
 import io.netty.util.internal.StringUtil;
 
 /**
@@ -31,13 +39,38 @@ public class AuthenticationHandler extends ChannelDuplexHandler {
     private static final byte PING = 0xC;
     private static final byte PUBLISH = 0x3;
 
+    // the decoders are stateless, the state is kept in the channel attributes
+    private static final ConnectDecoder CONNECT_DECODER = new ConnectDecoder();
+    private static final SubscribeDecoder SUBSCRIBE_DECODER = new SubscribeDecoder();
+
+    static final AttributeKey<String> CLIENT_ID = AttributeKey.valueOf("clientID");
+    static final AttributeKey<Byte> PROTOCOL_VERSION = AttributeKey.valueOf("protocolVersion");
+
     private final MqttListener mqttListener;
+    private final HeavyHitters heavyHitters;
+    private final SessionRegistry sessionRegistry;
+    private final LastValueCache lastValueCache;
 
     private String clientID;
+    private byte protocolVersion;
+    private SessionRegistry.Session session;
+    // checked locally instead of the listener, null if the listener does not provide them
+    private SessionPermissions permissions;
+    private Map<Integer, String> topicAliases;
+    // the PUBLISH packets are only parsed once, by this view
+    private final PacketView view = new PacketView();
 
     public AuthenticationHandler(MqttListener mqttListener)
+    {
+        this(mqttListener, null, null, null);
+    }
+
+    public AuthenticationHandler(MqttListener mqttListener, HeavyHitters heavyHitters, SessionRegistry sessionRegistry, LastValueCache lastValueCache)
     {
         this.mqttListener = mqttListener;
+        this.heavyHitters = heavyHitters;
+        this.sessionRegistry = sessionRegistry;
+        this.lastValueCache = lastValueCache;
     }
 
     @Override
@@ -46,39 +79,80 @@ public class AuthenticationHandler extends ChannelDuplexHandler {
         if (msg instanceof ByteBuf) {
             final ByteBuf in = (ByteBuf) msg;
 
-            traceData(in);
+            if (LOG.isDebugEnabled()) {
+                traceData(in);
+            }
 
+            // the CONNECT and SUBSCRIBE decoders start from the mark
             in.markReaderIndex();
-            if (!Utils.checkHeaderAvailability(in)) {
-                in.resetReaderIndex();
+            if (!wrap(in)) {
+                reject(ctx, in);
                 return;
             }
-            in.resetReaderIndex();
 
-            byte messageType = Utils.readMessageType(in);
+            final int length = in.readableBytes();
+            String publishedTopic = null;
+            SubscribeMessage acceptedSubscribe = null;
+            byte messageType = view.messageType();
             LOG.debug("receive new message: {}", messageType);
+            if (this.clientID == null && messageType != CONNECT) {
+                LOG.debug("first message {} is not a CONNECT", messageType);
+                reject(ctx, in);
+                return;
+            }
             switch (messageType) {
                 case CONNECT:
-                    final ConnectMessage connectMessage = new ConnectDecoder().decode(ctx, in);
-                    if (this.mqttListener != null && !this.mqttListener.checkClientID(connectMessage.getClientID())) {
+                    final ConnectMessage connectMessage = CONNECT_DECODER.decode(ctx, in);
+                    if (this.mqttListener != null && !checkClientID(connectMessage, in)) {
                         LOG.debug("clientID {} not valid", connectMessage.getClientID());
-                        ctx.close();
+                        refuseConnect(ctx, in, connectMessage.getProtocolVersion());
+                        return;
+                    } else if (this.mqttListener != null
+                            && !this.mqttListener.checkCredentials(connectMessage.getClientID(), connectMessage.getUsername(), connectMessage.getPassword())) {
+                        LOG.debug("clientID {} not authenticated", connectMessage.getClientID());
+                        refuseConnect(ctx, in, connectMessage.getProtocolVersion(), ConnAckMessage.BAD_USER_NAME_OR_PASSWORD, ConnAckMessage.BAD_USER_NAME_OR_PASSWORD_5);
+                        return;
+                    } else if (this.sessionRegistry != null && this.session == null) {
+                        this.session = this.sessionRegistry.register(connectMessage.getClientID(), ctx.channel());
+                        if (this.session == null) {
+                            LOG.debug("clientID {} already connected", connectMessage.getClientID());
+                            refuseConnect(ctx, in, connectMessage.getProtocolVersion());
+                            return;
+                        }
                     }
                     this.clientID = connectMessage.getClientID();
+                    if (this.mqttListener != null) {
+                        this.permissions = this.mqttListener.permissions(this.clientID);
+                    }
+                    this.protocolVersion = connectMessage.getProtocolVersion();
+                    ctx.channel().attr(CLIENT_ID).set(this.clientID);
+                    ctx.channel().attr(PROTOCOL_VERSION).set(this.protocolVersion);
                     LOG.debug("new clientID {} connected", this.clientID);
                     break;
                 case SUBSCRIBE:
-                    final SubscribeMessage subscribeMessage = new SubscribeDecoder().decode(ctx, in);
-                    if (this.mqttListener != null && !this.mqttListener.checkSubScribeTopic(this.clientID, subscribeMessage.topics())) {
+                    final SubscribeMessage subscribeMessage = SUBSCRIBE_DECODER.decode(ctx, in);
+                    if (this.mqttListener != null && !canSubscribe(subscribeMessage.topics())) {
                         LOG.debug("clientID {} and topic {} mismatch", this.clientID, subscribeMessage.topics());
-                        ctx.close();
+                        reject(ctx, in);
+                        return;
                     }
+                    acceptedSubscribe = subscribeMessage;
                     break;
                 case PUBLISH:
-                    final PublishMessage publishMessage = new PublishDecoder().decode(ctx, in);
-                    if (this.mqttListener != null && !this.mqttListener.checkPublishTopic(this.clientID, publishMessage.getTopicName())) {
-                        LOG.debug("clientID {} and topic {} mismatch", this.clientID, publishMessage.getTopicName());
-                        ctx.close();
+                    if (this.mqttListener == null && this.heavyHitters == null && view.topicAlias() == 0) {
+                        // nothing needs the topic
+                        break;
+                    }
+                    final String topic = resolveTopic(view);
+                    publishedTopic = topic;
+                    if (topic == null) {
+                        LOG.debug("clientID {} used the unknown topic alias {}", this.clientID, view.topicAlias());
+                        reject(ctx, in);
+                        return;
+                    } else if (this.mqttListener != null && !canPublish(topic)) {
+                        LOG.debug("clientID {} and topic {} mismatch", this.clientID, topic);
+                        reject(ctx, in);
+                        return;
                     }
                     break;
                 case PING:
@@ -90,11 +164,143 @@ public class AuthenticationHandler extends ChannelDuplexHandler {
                     break;
             }
 
+            if (heavyHitters != null) {
+                heavyHitters.record(HeavyHitters.Direction.IN, this.clientID, publishedTopic, length);
+            }
+            if (session != null) {
+                session.received(length);
+            }
+
+            if (lastValueCache != null && acceptedSubscribe != null) {
+                lastValueCache.subscribing(ctx.channel(), acceptedSubscribe, this.clientID, this.protocolVersion, this.mqttListener);
+            }
             in.resetReaderIndex();
+            view.clear();
+            super.channelRead(ctx, msg);
+            return;
         }
         super.channelRead(ctx, msg);
     }
 
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception
+    {
+        if (msg instanceof ByteBuf) {
+            final ByteBuf out = (ByteBuf) msg;
+            if (heavyHitters != null && out.isReadable()) {
+                // the broker packets are complete when the heavy hitters are tracked (see PacketSplitter)
+                String topic = null;
+                if (((out.getByte(out.readerIndex()) & 0xF0) >> 4) == PUBLISH) {
+                    final int topicIndex = Utils.variableHeaderIndex(out);
+                    final int topicLength = out.getUnsignedShort(topicIndex);
+                    // an MQTT 5 PUBLISH may only carry a topic alias, it is not attributed to a topic
+                    if (topicLength > 0) {
+                        topic = out.toString(topicIndex + 2, topicLength, CharsetUtil.UTF_8);
+                    }
+                }
+                heavyHitters.record(HeavyHitters.Direction.OUT, this.clientID, topic, out.readableBytes());
+            }
+            if (session != null) {
+                session.sent(out.readableBytes());
+            }
+        }
+        super.write(ctx, msg, promise);
+    }
+
+    /**
+     * The client pipeline splits the frames into whole packets, a packet is only refused here if its header is corrupt.
+     */
+    private boolean wrap(ByteBuf in)
+    {
+        try {
+            if (view.wrap(in, this.protocolVersion == Utils.VERSION_5)) {
+                return true;
+            }
+            LOG.debug("clientID {} sent an incomplete packet", this.clientID);
+        } catch (CorruptedFrameException e) {
+            LOG.debug("clientID {} sent a corrupt packet: {}", this.clientID, e.getMessage());
+        }
+        return false;
+    }
+
+    private boolean checkClientID(ConnectMessage connectMessage, ByteBuf connect)
+    {
+        if (connectMessage.getClientIDIndex() < 0) {
+            return this.mqttListener.checkClientID(connectMessage.getClientID());
+        }
+        return this.mqttListener.checkClientID(connectMessage.getClientID(), connect, connectMessage.getClientIDIndex(), connectMessage.getClientIDLength());
+    }
+
+    private boolean canPublish(String topic)
+    {
+        final SessionPermissions permissions = currentPermissions();
+        return permissions != null ? permissions.canPublish(topic) : this.mqttListener.checkPublishTopic(this.clientID, topic);
+    }
+
+    private boolean canSubscribe(List<String> topicFilters)
+    {
+        final SessionPermissions permissions = currentPermissions();
+        return permissions != null ? permissions.canSubscribe(topicFilters) : this.mqttListener.checkSubScribeTopic(this.clientID, topicFilters);
+    }
+
+    /**
+     * Return the permissions of the session, asking the listener again once they have been revoked.
+     */
+    private SessionPermissions currentPermissions()
+    {
+        if (this.permissions != null && this.permissions.isRevoked()) {
+            LOG.debug("permissions of clientID {} revoked", this.clientID);
+            this.permissions = this.mqttListener.permissions(this.clientID);
+        }
+        return this.permissions;
+    }
+
+    /**
+     * Drop a packet instead of forwarding it and close the session.
+     */
+    private static void reject(ChannelHandlerContext ctx, ByteBuf in)
+    {
+        in.release();
+        ctx.close();
+    }
+
+    /**
+     * Answer the CONNECT with an identifier rejected CONNACK instead of forwarding it, then close the session.
+     * The broker connection is only opened for an accepted CONNECT, so a refused client never reaches the broker.
+     */
+    private static void refuseConnect(ChannelHandlerContext ctx, ByteBuf in, byte protocolVersion)
+    {
+        refuseConnect(ctx, in, protocolVersion, ConnAckMessage.IDENTIFIER_REJECTED, ConnAckMessage.CLIENT_IDENTIFIER_NOT_VALID);
+    }
+
+    private static void refuseConnect(ChannelHandlerContext ctx, ByteBuf in, byte protocolVersion, byte returnCode, byte reasonCode)
+    {
+        in.release();
+        ctx.writeAndFlush(PacketEncoder.connAck(ctx.alloc(), protocolVersion, protocolVersion == Utils.VERSION_5 ? reasonCode : returnCode))
+                .addListener(ChannelFutureListener.CLOSE);
+    }
+
+    /**
+     * Return the topic of a publication, resolving the MQTT 5 topic alias set by the client.
+     *
+     * @return null if the alias is unknown
+     */
+    private String resolveTopic(PacketView publish)
+    {
+        final int alias = publish.topicAlias();
+        if (alias == 0) {
+            return publish.topic();
+        }
+        if (this.topicAliases == null) {
+            this.topicAliases = new HashMap<>();
+        }
+        if (publish.topicLength() == 0) {
+            return this.topicAliases.get(alias);
+        }
+        this.topicAliases.put(alias, publish.topic());
+        return publish.topic();
+    }
+
     private static void traceData(ByteBuf in)
     {
         int length = in.readableBytes();
@@ -109,10 +315,57 @@ public class AuthenticationHandler extends ChannelDuplexHandler {
     public interface MqttListener {
         boolean checkClientID(String clientID);
 
+        /**
+         * Same as {@link #checkClientID(String)}, with the UTF-8 bytes of the clientID in the CONNECT packet
+         * (length bytes from index) for the listeners looking them up in place.
+         */
+        default boolean checkClientID(String clientID, ByteBuf connect, int index, int length)
+        {
+            return checkClientID(clientID);
+        }
+
         boolean checkSubScribeTopic(String clientID, List<String> topic);
 
         boolean checkPublishTopic(String clientID, String topic);
 
+        /**
+         * Called for the broker to client deliveries when the delivery filter is enabled.
+         */
+        default boolean checkReadTopic(String clientID, String topic)
+        {
+            return true;
+        }
+
+        /**
+         * Called once at CONNECT, the returned permissions are then checked for each PUBLISH and SUBSCRIBE of the session
+         * instead of {@link #checkPublishTopic(String, String)} and {@link #checkSubScribeTopic(String, List)}.
+         *
+         * @return null to be called for each packet
+         */
+        default SessionPermissions permissions(String clientID)
+        {
+            return null;
+        }
+
+        /**
+         * Called at CONNECT, the user name and the password are null when the client does not send them.
+         *
+         * @return false to refuse the client with a bad user name or password CONNACK
+         */
+        default boolean checkCredentials(String clientID, String userName, byte[] password)
+        {
+            return true;
+        }
+
+        /**
+         * The upstream pool and the shared subscriptions answer the CONNECT of their clients locally, the broker never sees
+         * their credentials: they are only enabled with a listener authenticating the clients in {@link #checkCredentials(String, String, byte[])}.
+         */
+        default boolean authenticatesClients()
+        {
+            return false;
+        }
+
         void onPing(String clientID);
     }
 }
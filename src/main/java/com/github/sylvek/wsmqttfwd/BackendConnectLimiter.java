@@ -0,0 +1,208 @@
+package com.github.sylvek.wsmqttfwd;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.netty.channel.EventLoop;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
+
+/**
+ * Limits the number of in-flight connection attempts to the broker, globally and per event loop.
+ * The attempts above the limits wait in a bounded queue, they fail when the queue is full or after the queue timeout.
+ * Each event loop owns its own queue so only the global counters are shared between threads.
+ */
+public class BackendConnectLimiter {
+
+    static final Exception QUEUE_FULL = new IllegalStateException("backend connect queue full");
+    static final Exception QUEUE_TIMEOUT = new IllegalStateException("backend connect queue timeout");
+
+    static {
+        QUEUE_FULL.setStackTrace(new StackTraceElement[0]);
+        QUEUE_TIMEOUT.setStackTrace(new StackTraceElement[0]);
+    }
+
+    private final int maxInFlight;
+    private final int maxInFlightPerLoop;
+    private final int maxQueued;
+    private final long queueTimeoutNanos;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final ConcurrentMap<EventLoop, LoopQueue> loops = new ConcurrentHashMap<>();
+
+    private final AtomicLong granted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private final AtomicLong waited = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    public BackendConnectLimiter(int maxInFlight, int maxInFlightPerLoop, int maxQueued, long queueTimeoutMillis)
+    {
+        this.maxInFlight = maxInFlight > 0 ? maxInFlight : Integer.MAX_VALUE;
+        this.maxInFlightPerLoop = maxInFlightPerLoop > 0 ? maxInFlightPerLoop : Integer.MAX_VALUE;
+        this.maxQueued = maxQueued;
+        this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMillis);
+    }
+
+    /**
+     * Ask for a permit, must be called from the given event loop.
+     * Cancelling the returned future removes the request from the queue.
+     */
+    public Future<Void> acquire(EventLoop loop)
+    {
+        final Promise<Void> promise = loop.newPromise();
+        final LoopQueue queue = loops.computeIfAbsent(loop, l -> new LoopQueue());
+        if (queue.waiters.isEmpty() && tryAcquire(queue)) {
+            granted.incrementAndGet();
+            promise.setSuccess(null);
+            return promise;
+        }
+
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            rejected.incrementAndGet();
+            promise.setFailure(QUEUE_FULL);
+            return promise;
+        }
+
+        final Waiter waiter = new Waiter(promise);
+        waiter.timeout = loop.schedule(() -> {
+            if (queue.remove(waiter) && promise.tryFailure(QUEUE_TIMEOUT)) {
+                timedOut.incrementAndGet();
+            }
+        }, queueTimeoutNanos, TimeUnit.NANOSECONDS);
+        queue.add(waiter);
+        return promise;
+    }
+
+    /**
+     * Give back a permit once the connection attempt is completed, must be called from the event loop that acquired it.
+     */
+    public void release(EventLoop loop)
+    {
+        final LoopQueue queue = loops.get(loop);
+        queue.inFlight--;
+        inFlight.decrementAndGet();
+        queue.pump();
+
+        // the global permit may be the one other event loops are waiting for
+        for (Map.Entry<EventLoop, LoopQueue> entry : loops.entrySet()) {
+            final LoopQueue other = entry.getValue();
+            if (other != queue && other.size > 0 && inFlight.get() < maxInFlight) {
+                entry.getKey().execute(other::pump);
+            }
+        }
+    }
+
+    public String status()
+    {
+        final long waits = waited.get();
+        return "{\"inFlight\":" + inFlight.get() +
+                ",\"queued\":" + queued.get() +
+                ",\"granted\":" + granted.get() +
+                ",\"rejected\":" + rejected.get() +
+                ",\"timedOut\":" + timedOut.get() +
+                ",\"waited\":" + waits +
+                ",\"averageWaitMillis\":" + (waits == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get() / waits)) +
+                ",\"maxWaitMillis\":" + TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get()) + "}";
+    }
+
+    private boolean tryAcquire(LoopQueue queue)
+    {
+        if (queue.inFlight >= maxInFlightPerLoop) {
+            return false;
+        }
+        int current;
+        do {
+            current = inFlight.get();
+            if (current >= maxInFlight) {
+                return false;
+            }
+        } while (!inFlight.compareAndSet(current, current + 1));
+        queue.inFlight++;
+        return true;
+    }
+
+    private void recordWait(long nanos)
+    {
+        waited.incrementAndGet();
+        totalWaitNanos.addAndGet(nanos);
+        long max;
+        do {
+            max = maxWaitNanos.get();
+        } while (nanos > max && !maxWaitNanos.compareAndSet(max, nanos));
+    }
+
+    private static class Waiter {
+
+        final Promise<Void> promise;
+        final long enqueuedAt = System.nanoTime();
+        ScheduledFuture<?> timeout;
+
+        Waiter(Promise<Void> promise)
+        {
+            this.promise = promise;
+        }
+    }
+
+    /**
+     * State of one event loop, only accessed from this event loop except the size.
+     */
+    private class LoopQueue {
+
+        final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+        int inFlight;
+        volatile int size;
+
+        void add(Waiter waiter)
+        {
+            waiters.add(waiter);
+            size = waiters.size();
+        }
+
+        boolean remove(Waiter waiter)
+        {
+            if (waiters.remove(waiter)) {
+                size = waiters.size();
+                queued.decrementAndGet();
+                return true;
+            }
+            return false;
+        }
+
+        void poll()
+        {
+            final Waiter waiter = waiters.poll();
+            size = waiters.size();
+            queued.decrementAndGet();
+            waiter.timeout.cancel(false);
+        }
+
+        void pump()
+        {
+            Waiter waiter;
+            while ((waiter = waiters.peek()) != null) {
+                if (waiter.promise.isDone()) {
+                    // cancelled by its channel
+                    poll();
+                    continue;
+                }
+                if (!tryAcquire(this)) {
+                    break;
+                }
+                poll();
+                recordWait(System.nanoTime() - waiter.enqueuedAt);
+                granted.incrementAndGet();
+                waiter.promise.trySuccess(null);
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.github.sylvek.wsmqttfwd;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PongWebSocketFrame;
+
+/**
+ * Decodes the RFC 6455 frames of a MQTT client without building frame objects: the payload of the binary
+ * and continuation frames is unmasked in place, eight bytes at a time, and passed on as a slice of the received buffer.
+ * Ping and close frames are answered here, text frames close the connection since MQTT is only carried by binary frames.
+ */
+public class BinaryFrameDecoder extends ByteToMessageDecoder {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BinaryFrameDecoder.class);
+
+    static final int OPCODE_CONTINUATION = 0x0;
+    static final int OPCODE_TEXT = 0x1;
+    static final int OPCODE_BINARY = 0x2;
+    static final int OPCODE_CLOSE = 0x8;
+    static final int OPCODE_PING = 0x9;
+    static final int OPCODE_PONG = 0xA;
+
+    private static final int MAX_CONTROL_PAYLOAD_LENGTH = 125;
+
+    private final int maxFramePayloadLength;
+
+    private boolean closed;
+
+    public BinaryFrameDecoder(int maxFramePayloadLength)
+    {
+        this.maxFramePayloadLength = maxFramePayloadLength;
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception
+    {
+        if (closed) {
+            in.skipBytes(in.readableBytes());
+            return;
+        }
+        while (in.readableBytes() >= 2) {
+            final int start = in.readerIndex();
+            final int b0 = in.getUnsignedByte(start);
+            final int b1 = in.getUnsignedByte(start + 1);
+            final boolean fin = (b0 & 0x80) != 0;
+            final int opcode = b0 & 0x0F;
+
+            int headerLength = 2;
+            long payloadLength = b1 & 0x7F;
+            if (payloadLength == 126) {
+                headerLength += 2;
+                if (in.readableBytes() < headerLength) {
+                    return;
+                }
+                payloadLength = in.getUnsignedShort(start + 2);
+            } else if (payloadLength == 127) {
+                headerLength += 8;
+                if (in.readableBytes() < headerLength) {
+                    return;
+                }
+                payloadLength = in.getLong(start + 2);
+            }
+
+            if ((b0 & 0x70) != 0 || (b1 & 0x80) == 0) {
+                // no extension is negotiated and the client frames must be masked
+                protocolError(ctx, in, 1002, "protocol error");
+                return;
+            }
+            if (opcode >= OPCODE_CLOSE && (!fin || payloadLength > MAX_CONTROL_PAYLOAD_LENGTH)) {
+                protocolError(ctx, in, 1002, "invalid control frame");
+                return;
+            }
+            if (payloadLength < 0 || payloadLength > maxFramePayloadLength) {
+                protocolError(ctx, in, 1009, "frame too big");
+                return;
+            }
+
+            headerLength += 4;
+            if (in.readableBytes() < headerLength + payloadLength) {
+                return;
+            }
+            final int mask = in.getInt(start + headerLength - 4);
+            final int payloadIndex = start + headerLength;
+            final int length = (int) payloadLength;
+            unmask(in, payloadIndex, length, mask);
+            in.readerIndex(payloadIndex + length);
+
+            switch (opcode) {
+                case OPCODE_BINARY:
+                case OPCODE_CONTINUATION:
+                    if (length > 0) {
+                        out.add(in.slice(payloadIndex, length).retain());
+                    }
+                    break;
+                case OPCODE_PING:
+                    ctx.writeAndFlush(new PongWebSocketFrame(in.slice(payloadIndex, length).retain()));
+                    break;
+                case OPCODE_PONG:
+                    break;
+                case OPCODE_CLOSE:
+                    closed = true;
+                    final ByteBuf closePayload = in.slice(payloadIndex, length).retain();
+                    in.skipBytes(in.readableBytes());
+                    ctx.writeAndFlush(new CloseWebSocketFrame(true, 0, closePayload)).addListener(ChannelFutureListener.CLOSE);
+                    return;
+                case OPCODE_TEXT:
+                    protocolError(ctx, in, 1003, "binary frames only");
+                    return;
+                default:
+                    protocolError(ctx, in, 1002, "unknown opcode");
+                    return;
+            }
+        }
+    }
+
+    /**
+     * XOR the payload with the masking key, a long word at a time then byte by byte for the tail.
+     */
+    static void unmask(ByteBuf buffer, int index, int length, int mask)
+    {
+        final long longMask = (mask & 0xFFFFFFFFL) << 32 | (mask & 0xFFFFFFFFL);
+        final int end = index + length;
+        int i = index;
+        for (; i + 8 <= end; i += 8) {
+            buffer.setLong(i, buffer.getLong(i) ^ longMask);
+        }
+        for (; i < end; i++) {
+            buffer.setByte(i, buffer.getByte(i) ^ (mask >>> (24 - 8 * ((i - index) & 3))));
+        }
+    }
+
+    private void protocolError(ChannelHandlerContext ctx, ByteBuf in, int statusCode, String reason)
+    {
+        LOG.debug("closing websocket: {}", reason);
+        closed = true;
+        in.skipBytes(in.readableBytes());
+        ctx.writeAndFlush(new CloseWebSocketFrame(statusCode, reason)).addListener(ChannelFutureListener.CLOSE);
+    }
+}
@@ -0,0 +1,74 @@
+package com.github.sylvek.wsmqttfwd;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PongWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+
+/**
+ * Encodes the RFC 6455 server frames: a ByteBuf is sent as a single binary frame, the frame header is written
+ * in a small buffer in front of the payload so the payload is never copied. The WebSocketFrame objects written
+ * by the other handlers (control frames, coalesced frames) are encoded the same way.
+ */
+public class BinaryFrameEncoder extends ChannelOutboundHandlerAdapter {
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception
+    {
+        if (msg instanceof ByteBuf) {
+            final ByteBuf payload = (ByteBuf) msg;
+            ctx.write(header(ctx, 0x80 | BinaryFrameDecoder.OPCODE_BINARY, payload.readableBytes()), ctx.voidPromise());
+            ctx.write(payload, promise);
+        } else if (msg instanceof WebSocketFrame) {
+            final WebSocketFrame frame = (WebSocketFrame) msg;
+            final int b0 = (frame.isFinalFragment() ? 0x80 : 0) | frame.rsv() << 4 | opcode(frame);
+            ctx.write(header(ctx, b0, frame.content().readableBytes()), ctx.voidPromise());
+            ctx.write(frame.content(), promise);
+        } else {
+            ctx.write(msg, promise);
+        }
+    }
+
+    private static ByteBuf header(ChannelHandlerContext ctx, int b0, int length)
+    {
+        final ByteBuf header;
+        if (length < 126) {
+            header = ctx.alloc().buffer(2);
+            header.writeByte(b0);
+            header.writeByte(length);
+        } else if (length < 65536) {
+            header = ctx.alloc().buffer(4);
+            header.writeByte(b0);
+            header.writeByte(126);
+            header.writeShort(length);
+        } else {
+            header = ctx.alloc().buffer(10);
+            header.writeByte(b0);
+            header.writeByte(127);
+            header.writeLong(length);
+        }
+        return header;
+    }
+
+    private static int opcode(WebSocketFrame frame)
+    {
+        if (frame instanceof BinaryWebSocketFrame) {
+            return BinaryFrameDecoder.OPCODE_BINARY;
+        } else if (frame instanceof TextWebSocketFrame) {
+            return BinaryFrameDecoder.OPCODE_TEXT;
+        } else if (frame instanceof CloseWebSocketFrame) {
+            return BinaryFrameDecoder.OPCODE_CLOSE;
+        } else if (frame instanceof PingWebSocketFrame) {
+            return BinaryFrameDecoder.OPCODE_PING;
+        } else if (frame instanceof PongWebSocketFrame) {
+            return BinaryFrameDecoder.OPCODE_PONG;
+        }
+        return BinaryFrameDecoder.OPCODE_CONTINUATION;
+    }
+}
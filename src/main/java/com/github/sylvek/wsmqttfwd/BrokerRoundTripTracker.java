@@ -0,0 +1,213 @@
+package com.github.sylvek.wsmqttfwd;
+
+import com.github.sylvek.wsmqttfwd.message.AbstractMessage;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.FastThreadLocal;
+
+/**
+ * Measures the CONNECT to CONNACK latency and the ping round trip time of a broker, and counts the CONNACK return codes.
+ * The broker to client stream is scanned just enough to find the packet boundaries, nothing is copied.
+ * The statistics are recorded per event loop without lock and merged when they are read.
+ */
+public class BrokerRoundTripTracker {
+
+    static final AttributeKey<PendingRequests> PENDING_REQUESTS = AttributeKey.valueOf("pendingRequests");
+
+    // return codes 0 to 5 of MQTT 3.1.1, the last counter is used for the other values
+    private static final int RETURN_CODES = 7;
+
+    private final String backend;
+    private final List<LoopStats> allStats = new CopyOnWriteArrayList<>();
+    private final FastThreadLocal<LoopStats> stats = new FastThreadLocal<LoopStats>() {
+        @Override
+        protected LoopStats initialValue() throws Exception
+        {
+            final LoopStats loopStats = new LoopStats();
+            allStats.add(loopStats);
+            return loopStats;
+        }
+    };
+
+    public BrokerRoundTripTracker(String backend)
+    {
+        this.backend = backend;
+    }
+
+    /**
+     * Called when a client sends its CONNECT packet.
+     */
+    public static void connectSent(Channel inboundChannel)
+    {
+        pendingRequests(inboundChannel).connectSentAt = System.nanoTime();
+    }
+
+    /**
+     * Called when a PINGREQ packet is written to the broker, forwarded from the client or sent by the forwarder.
+     */
+    public static void pingSent(Channel inboundChannel)
+    {
+        pendingRequests(inboundChannel).pingSentAt = System.nanoTime();
+    }
+
+    private static PendingRequests pendingRequests(Channel inboundChannel)
+    {
+        PendingRequests pending = inboundChannel.attr(PENDING_REQUESTS).get();
+        if (pending == null) {
+            pending = new PendingRequests();
+            inboundChannel.attr(PENDING_REQUESTS).set(pending);
+        }
+        return pending;
+    }
+
+    public ChannelHandler newHandler(Channel inboundChannel)
+    {
+        return new TrackerHandler(inboundChannel);
+    }
+
+    public String status()
+    {
+        final long[] connect = new long[LatencyHistogram.BUCKETS];
+        final long[] ping = new long[LatencyHistogram.BUCKETS];
+        final long[] returnCodes = new long[RETURN_CODES];
+        for (LoopStats loopStats : allStats) {
+            loopStats.connAck.addTo(connect);
+            loopStats.pingResp.addTo(ping);
+            for (int i = 0; i < RETURN_CODES; i++) {
+                returnCodes[i] += loopStats.returnCodes.get(i);
+            }
+        }
+
+        final StringBuilder codes = new StringBuilder();
+        for (int i = 0; i < RETURN_CODES; i++) {
+            if (i > 0) {
+                codes.append(',');
+            }
+            codes.append('"').append(i < RETURN_CODES - 1 ? String.valueOf(i) : "other").append("\":").append(returnCodes[i]);
+        }
+        return "{\"backend\":\"" + backend + "\"" +
+                ",\"connAck\":" + LatencyHistogram.summary(connect) +
+                ",\"pingResp\":" + LatencyHistogram.summary(ping) +
+                ",\"returnCodes\":{" + codes + "}}";
+    }
+
+    static class PendingRequests {
+
+        long connectSentAt;
+        long pingSentAt;
+    }
+
+    private static class LoopStats {
+
+        final LatencyHistogram connAck = new LatencyHistogram();
+        final LatencyHistogram pingResp = new LatencyHistogram();
+        final AtomicLongArray returnCodes = new AtomicLongArray(RETURN_CODES);
+    }
+
+    private class TrackerHandler extends ChannelInboundHandlerAdapter {
+
+        private static final int HEADER = 0;
+        private static final int LENGTH = 1;
+        private static final int BODY = 2;
+
+        private final Channel inboundChannel;
+
+        private int state = HEADER;
+        private byte messageType;
+        private int remaining;
+        private int multiplier;
+        private int bodyIndex;
+
+        TrackerHandler(Channel inboundChannel)
+        {
+            this.inboundChannel = inboundChannel;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception
+        {
+            if (msg instanceof ByteBuf) {
+                scan((ByteBuf) msg);
+            }
+            super.channelRead(ctx, msg);
+        }
+
+        private void scan(ByteBuf in)
+        {
+            int index = in.readerIndex();
+            final int end = in.writerIndex();
+            while (index < end) {
+                switch (state) {
+                    case HEADER:
+                        messageType = (byte) ((in.getByte(index++) & 0x00F0) >> 4);
+                        remaining = 0;
+                        multiplier = 1;
+                        state = LENGTH;
+                        break;
+                    case LENGTH:
+                        final byte digit = in.getByte(index++);
+                        remaining += (digit & 0x7F) * multiplier;
+                        multiplier *= 128;
+                        if ((digit & 0x80) == 0) {
+                            if (messageType == AbstractMessage.PINGRESP) {
+                                onPingResp();
+                            }
+                            bodyIndex = 0;
+                            state = remaining == 0 ? HEADER : BODY;
+                        }
+                        break;
+                    default:
+                        if (messageType == AbstractMessage.CONNACK && bodyIndex < 2) {
+                            // the second byte is the return code (reason code in MQTT 5)
+                            if (bodyIndex == 1) {
+                                onConnAck(in.getByte(index));
+                            }
+                            index++;
+                            bodyIndex++;
+                            remaining--;
+                        } else {
+                            final int skipped = Math.min(remaining, end - index);
+                            index += skipped;
+                            bodyIndex += skipped;
+                            remaining -= skipped;
+                        }
+                        if (remaining == 0) {
+                            state = HEADER;
+                        }
+                        break;
+                }
+            }
+        }
+
+        private void onConnAck(byte returnCode)
+        {
+            final LoopStats loopStats = stats.get();
+            final int code = returnCode >= 0 && returnCode < RETURN_CODES - 1 ? returnCode : RETURN_CODES - 1;
+            loopStats.returnCodes.lazySet(code, loopStats.returnCodes.get(code) + 1);
+
+            final PendingRequests pending = inboundChannel.attr(PENDING_REQUESTS).get();
+            if (pending != null && pending.connectSentAt != 0) {
+                loopStats.connAck.record(System.nanoTime() - pending.connectSentAt);
+                pending.connectSentAt = 0;
+            }
+        }
+
+        private void onPingResp()
+        {
+            final PendingRequests pending = inboundChannel.attr(PENDING_REQUESTS).get();
+            if (pending != null && pending.pingSentAt != 0) {
+                stats.get().pingResp.record(System.nanoTime() - pending.pingSentAt);
+                pending.pingSentAt = 0;
+            }
+        }
+    }
+}
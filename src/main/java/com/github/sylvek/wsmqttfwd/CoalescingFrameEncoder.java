@@ -0,0 +1,140 @@
+package com.github.sylvek.wsmqttfwd;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+
+/**
+ * Packs consecutive ByteBuf writes into a single binary WebSocket frame, bounded by a maximum frame size
+ * and by a latency budget counted from the first flush of the buffered data.
+ * A buffered write is completed immediately while the channel is writable, so the reads of the broker
+ * connection are not delayed by the latency budget.
+ */
+public class CoalescingFrameEncoder extends ChannelOutboundHandlerAdapter {
+
+    private final int maxFrameSize;
+    private final long maxDelayNanos;
+
+    private ByteBuf pending;
+    private List<ChannelPromise> pendingPromises;
+    private ScheduledFuture<?> flushTask;
+
+    public CoalescingFrameEncoder(int maxFrameSize, long maxDelayMicros)
+    {
+        this.maxFrameSize = maxFrameSize;
+        this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception
+    {
+        if (!(msg instanceof ByteBuf)) {
+            writePending(ctx);
+            ctx.write(msg, promise);
+            return;
+        }
+
+        final ByteBuf bb = (ByteBuf) msg;
+        final int size = bb.readableBytes();
+        if (pending != null && pending.readableBytes() + size > maxFrameSize) {
+            writePending(ctx);
+        }
+
+        if (size >= maxFrameSize) {
+            ctx.write(new BinaryWebSocketFrame(bb), promise);
+            return;
+        }
+
+        if (pending == null) {
+            pending = ctx.alloc().buffer(Math.min(Math.max(size, 256), maxFrameSize), maxFrameSize);
+        }
+        pending.writeBytes(bb);
+        bb.release();
+
+        if (ctx.channel().isWritable()) {
+            promise.trySuccess();
+        } else {
+            // keep the back-pressure until the frame is really written
+            if (pendingPromises == null) {
+                pendingPromises = new ArrayList<>(4);
+            }
+            pendingPromises.add(promise);
+        }
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) throws Exception
+    {
+        if (pending != null) {
+            if (maxDelayNanos == 0) {
+                writePending(ctx);
+            } else if (flushTask == null) {
+                flushTask = ctx.executor().schedule(() -> {
+                    flushTask = null;
+                    writePending(ctx);
+                    ctx.flush();
+                }, maxDelayNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+        ctx.flush();
+    }
+
+    @Override
+    public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception
+    {
+        writePending(ctx);
+        ctx.flush();
+        ctx.close(promise);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception
+    {
+        if (flushTask != null) {
+            flushTask.cancel(false);
+            flushTask = null;
+        }
+        if (pending != null) {
+            pending.release();
+            pending = null;
+        }
+        if (pendingPromises != null) {
+            for (ChannelPromise promise : pendingPromises) {
+                promise.tryFailure(new IllegalStateException("handler removed"));
+            }
+            pendingPromises = null;
+        }
+    }
+
+    private void writePending(ChannelHandlerContext ctx)
+    {
+        if (pending == null) {
+            return;
+        }
+
+        final ChannelFuture future = ctx.write(new BinaryWebSocketFrame(pending));
+        pending = null;
+        if (pendingPromises != null) {
+            final List<ChannelPromise> promises = pendingPromises;
+            pendingPromises = null;
+            future.addListener((ChannelFutureListener) f -> {
+                for (ChannelPromise promise : promises) {
+                    if (f.isSuccess()) {
+                        promise.trySuccess();
+                    } else {
+                        promise.tryFailure(f.cause());
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.github.sylvek.wsmqttfwd;
+
+import com.github.sylvek.wsmqttfwd.decoder.Utils;
+import com.github.sylvek.wsmqttfwd.encoder.PacketEncoder;
+import com.github.sylvek.wsmqttfwd.message.AbstractMessage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.CharsetUtil;
+
+/**
+ * Checks the broker to client PUBLISH packets against the read permissions of the client
+ * and drops the disallowed deliveries. It expects one complete packet per ByteBuf
+ * (see {@link com.github.sylvek.wsmqttfwd.decoder.PacketSplitter}).
+ */
+public class DeliveryFilterHandler extends ChannelInboundHandlerAdapter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DeliveryFilterHandler.class);
+
+    private final Channel inboundChannel;
+    private final AuthenticationHandler.MqttListener mqttListener;
+    private final TopicDecisionCache decisions;
+    private final long ttl;
+
+    // QoS2 deliveries dropped locally, their PUBREL must not reach the client
+    private Set<Integer> droppedMessageIDs;
+
+    public DeliveryFilterHandler(Channel inboundChannel, AuthenticationHandler.MqttListener mqttListener, int cacheSize, long cacheTtlMillis)
+    {
+        this.inboundChannel = inboundChannel;
+        this.mqttListener = mqttListener;
+        this.decisions = new TopicDecisionCache(cacheSize);
+        this.ttl = TimeUnit.MILLISECONDS.toNanos(cacheTtlMillis);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception
+    {
+        if (msg instanceof ByteBuf) {
+            final ByteBuf in = (ByteBuf) msg;
+            final int h1 = in.getByte(in.readerIndex());
+            final byte messageType = (byte) ((h1 & 0x00F0) >> 4);
+            if (messageType == AbstractMessage.PUBLISH) {
+                final int topicIndex = Utils.variableHeaderIndex(in);
+                final int topicLength = in.getUnsignedShort(topicIndex);
+                final String topic = in.toString(topicIndex + 2, topicLength, CharsetUtil.UTF_8);
+                if (!isAllowed(topic)) {
+                    LOG.debug("delivery of topic {} refused to clientID {}", topic, inboundChannel.attr(AuthenticationHandler.CLIENT_ID).get());
+                    final int qos = (h1 & 0x0006) >> 1;
+                    if (qos > 0) {
+                        final int messageID = in.getUnsignedShort(topicIndex + 2 + topicLength);
+                        if (qos == 1) {
+                            ctx.writeAndFlush(PacketEncoder.ack(ctx.alloc(), AbstractMessage.PUBACK, messageID));
+                        } else {
+                            droppedMessageIDs().add(messageID);
+                            ctx.writeAndFlush(PacketEncoder.ack(ctx.alloc(), AbstractMessage.PUBREC, messageID));
+                        }
+                    }
+                    in.release();
+                    ctx.read();
+                    return;
+                }
+            } else if (messageType == AbstractMessage.PUBREL && droppedMessageIDs != null) {
+                final int messageID = in.getUnsignedShort(in.readerIndex() + 2);
+                if (droppedMessageIDs.remove(messageID)) {
+                    ctx.writeAndFlush(PacketEncoder.ack(ctx.alloc(), AbstractMessage.PUBCOMP, messageID));
+                    in.release();
+                    ctx.read();
+                    return;
+                }
+            }
+        }
+        super.channelRead(ctx, msg);
+    }
+
+    private boolean isAllowed(String topic)
+    {
+        final long now = System.nanoTime();
+        final Decision decision = decisions.get(topic);
+        if (decision != null && now - decision.expiresAt < 0) {
+            return decision.allowed;
+        }
+
+        final boolean allowed = mqttListener.checkReadTopic(inboundChannel.attr(AuthenticationHandler.CLIENT_ID).get(), topic);
+        decisions.put(topic, new Decision(allowed, now + ttl));
+        return allowed;
+    }
+
+    private Set<Integer> droppedMessageIDs()
+    {
+        if (droppedMessageIDs == null) {
+            droppedMessageIDs = new HashSet<>();
+        }
+        return droppedMessageIDs;
+    }
+
+    private static class Decision {
+
+        final boolean allowed;
+        final long expiresAt;
+
+        Decision(boolean allowed, long expiresAt)
+        {
+            this.allowed = allowed;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Per connection LRU of the most recent topic decisions.
+     */
+    private static class TopicDecisionCache extends LinkedHashMap<String, Decision> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int maxSize;
+
+        TopicDecisionCache(int maxSize)
+        {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Decision> eldest)
+        {
+            return size() > maxSize;
+        }
+    }
+}
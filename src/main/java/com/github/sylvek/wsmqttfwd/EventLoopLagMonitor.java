@@ -0,0 +1,297 @@
+package com.github.sylvek.wsmqttfwd;
+
+import com.github.sylvek.wsmqttfwd.decoder.Utils;
+import com.github.sylvek.wsmqttfwd.encoder.PacketEncoder;
+import com.github.sylvek.wsmqttfwd.message.AbstractMessage;
+import com.github.sylvek.wsmqttfwd.message.ConnAckMessage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.EventExecutor;
+
+/**
+ * Measures the scheduling lag of each worker event loop, the delay between the time a task is due and the time it runs,
+ * and sheds load when it grows. Each level has its own lag threshold:
+ * <ol>
+ * <li>the server stops accepting connections while any event loop is overloaded,</li>
+ * <li>the CONNECT packets received by an overloaded event loop are answered by a server unavailable CONNACK,</li>
+ * <li>the reads of the clients of an overloaded event loop are paused.</li>
+ * </ol>
+ * A level is entered as soon as the lag crosses its threshold, and left one level at a time once the lag stayed below
+ * half of the threshold for {@value #RECOVERY_MEASURES} consecutive measures.
+ * While the reads are paused, the handlers of a client change its auto read through {@link #setAutoRead(Channel, boolean)},
+ * so the value is applied when the pause ends instead of resuming the reads.
+ */
+public class EventLoopLagMonitor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EventLoopLagMonitor.class);
+
+    public static final int NORMAL = 0;
+    public static final int STOP_ACCEPT = 1;
+    public static final int SHED_CONNECT = 2;
+    public static final int PAUSE_READS = 3;
+
+    static final int RECOVERY_MEASURES = 10;
+
+    // auto read of a client to restore at the end of the pause, only set while its reads are paused
+    private static final AttributeKey<Boolean> READS_PAUSED = AttributeKey.valueOf("readsPaused");
+
+    private final long interval;
+    // lag thresholds of the levels, in nanoseconds, the first one is unused
+    private final long[] thresholds;
+
+    // built before the server is bound, the connect handlers read it as soon as the first client is accepted
+    private final LoopMonitor[] loops;
+    private volatile Channel serverChannel;
+    private volatile ChannelGroup clientChannels;
+    private volatile boolean stopped;
+    private boolean accepting = true;
+
+    private final AtomicLong acceptPauses = new AtomicLong();
+    private final AtomicLong shedConnects = new AtomicLong();
+    private final AtomicLong readPauses = new AtomicLong();
+
+    /**
+     * @param workerGroup the event loops of the clients
+     * @param intervalMillis delay between two measures of each event loop
+     * @param acceptLagMillis lag beyond which the server stops accepting connections
+     * @param connectLagMillis lag beyond which the CONNECT packets are refused
+     * @param readLagMillis lag beyond which the reads of the clients are paused
+     */
+    public EventLoopLagMonitor(EventLoopGroup workerGroup, long intervalMillis, long acceptLagMillis, long connectLagMillis, long readLagMillis)
+    {
+        final List<LoopMonitor> monitors = new ArrayList<>();
+        for (EventExecutor executor : workerGroup) {
+            monitors.add(new LoopMonitor((EventLoop) executor));
+        }
+        this.loops = monitors.toArray(new LoopMonitor[monitors.size()]);
+        this.interval = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.thresholds = new long[]{0, TimeUnit.MILLISECONDS.toNanos(acceptLagMillis), TimeUnit.MILLISECONDS.toNanos(connectLagMillis),
+                TimeUnit.MILLISECONDS.toNanos(readLagMillis)};
+    }
+
+    public void start(Channel serverChannel, ChannelGroup clientChannels)
+    {
+        this.serverChannel = serverChannel;
+        this.clientChannels = clientChannels;
+        for (LoopMonitor loop : loops) {
+            loop.schedule();
+        }
+    }
+
+    public void stop()
+    {
+        stopped = true;
+    }
+
+    /**
+     * @return true while the reads of the client are paused by the monitor, the client must not read
+     */
+    static boolean isReadPaused(Channel channel)
+    {
+        return channel.attr(READS_PAUSED).get() != null;
+    }
+
+    /**
+     * Change the auto read of a client, from its event loop. While its reads are paused, the value is only applied
+     * when the pause ends.
+     */
+    static void setAutoRead(Channel channel, boolean autoRead)
+    {
+        final Attribute<Boolean> paused = channel.attr(READS_PAUSED);
+        if (paused.get() != null) {
+            paused.set(autoRead);
+        } else {
+            channel.config().setAutoRead(autoRead);
+        }
+    }
+
+    /**
+     * Handler refusing the CONNECT of a client while its event loop sheds the new sessions, it is removed after the first packet.
+     */
+    public ChannelHandler newConnectHandler()
+    {
+        return new ConnectHandler();
+    }
+
+    public String status()
+    {
+        final long[] lags = new long[LatencyHistogram.BUCKETS];
+        final StringBuilder sb = new StringBuilder("{\"loops\":[");
+        for (int i = 0; i < loops.length; i++) {
+            final LoopMonitor loop = loops[i];
+            loop.lags.addTo(lags);
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"lagMicros\":").append(loop.lag / 1000).append(",\"level\":").append(loop.level).append('}');
+        }
+        return sb.append("],\"lag\":").append(LatencyHistogram.summary(lags))
+                .append(",\"accepting\":").append(isAccepting())
+                .append(",\"acceptPauses\":").append(acceptPauses.get())
+                .append(",\"shedConnects\":").append(shedConnects.get())
+                .append(",\"readPauses\":").append(readPauses.get()).append('}').toString();
+    }
+
+    private synchronized boolean isAccepting()
+    {
+        return accepting;
+    }
+
+    private int maxLevel()
+    {
+        int max = NORMAL;
+        for (LoopMonitor loop : loops) {
+            max = Math.max(max, loop.level);
+        }
+        return max;
+    }
+
+    private LoopMonitor monitor(EventLoop eventLoop)
+    {
+        for (LoopMonitor loop : loops) {
+            if (loop.eventLoop == eventLoop) {
+                return loop;
+            }
+        }
+        return null;
+    }
+
+    private synchronized void updateAccept()
+    {
+        final boolean accept = maxLevel() < STOP_ACCEPT;
+        if (accept != accepting && serverChannel != null) {
+            accepting = accept;
+            if (!accept) {
+                acceptPauses.incrementAndGet();
+            }
+            LOG.warn("event loop lag, {} accepting connections", accept ? "resume" : "stop");
+            serverChannel.config().setAutoRead(accept);
+        }
+    }
+
+    private class LoopMonitor implements Runnable {
+
+        final EventLoop eventLoop;
+        final LatencyHistogram lags = new LatencyHistogram();
+        volatile long lag;
+        volatile int level = NORMAL;
+
+        private long dueAt;
+        private int calmMeasures;
+        // the clients whose reads were paused by the monitor
+        private List<Channel> paused;
+
+        LoopMonitor(EventLoop eventLoop)
+        {
+            this.eventLoop = eventLoop;
+        }
+
+        void schedule()
+        {
+            if (!stopped && !eventLoop.isShuttingDown()) {
+                dueAt = System.nanoTime() + interval;
+                eventLoop.schedule(this, interval, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            lag = Math.max(0, System.nanoTime() - dueAt);
+            lags.record(lag);
+
+            int newLevel = level;
+            while (newLevel < PAUSE_READS && lag >= thresholds[newLevel + 1]) {
+                newLevel++;
+            }
+            if (newLevel > NORMAL && lag < thresholds[newLevel] / 2) {
+                if (++calmMeasures >= RECOVERY_MEASURES) {
+                    calmMeasures = 0;
+                    newLevel--;
+                }
+            } else {
+                calmMeasures = 0;
+            }
+            if (newLevel != level) {
+                LOG.warn("event loop lag of {}ms, load shedding level {} -> {}", TimeUnit.NANOSECONDS.toMillis(lag), level, newLevel);
+                if (newLevel >= PAUSE_READS && level < PAUSE_READS) {
+                    pauseReads();
+                } else if (newLevel < PAUSE_READS && level >= PAUSE_READS) {
+                    resumeReads();
+                }
+                level = newLevel;
+                updateAccept();
+            }
+            schedule();
+        }
+
+        private void pauseReads()
+        {
+            readPauses.incrementAndGet();
+            paused = new ArrayList<>();
+            for (Channel channel : clientChannels) {
+                // the clients already paused by their broker connection are marked too, so they are not resumed meanwhile
+                if (channel.eventLoop() == eventLoop) {
+                    channel.attr(READS_PAUSED).set(channel.config().isAutoRead());
+                    channel.config().setAutoRead(false);
+                    paused.add(channel);
+                }
+            }
+        }
+
+        private void resumeReads()
+        {
+            for (Channel channel : paused) {
+                final Boolean autoRead = channel.attr(READS_PAUSED).getAndSet(null);
+                if (autoRead != null && autoRead && channel.isOpen()) {
+                    channel.config().setAutoRead(true);
+                }
+            }
+            paused = null;
+        }
+    }
+
+    private class ConnectHandler extends ChannelInboundHandlerAdapter {
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception
+        {
+            if (msg instanceof ByteBuf) {
+                final ByteBuf in = (ByteBuf) msg;
+                final LoopMonitor loop = monitor(ctx.channel().eventLoop());
+                final int length = Utils.packetLength(in);
+                if (loop != null && loop.level >= SHED_CONNECT && ((in.getByte(in.readerIndex()) & 0xF0) >> 4) == AbstractMessage.CONNECT
+                        && length > 0 && length <= in.readableBytes()) {
+                    final int protocolNameIndex = Utils.variableHeaderIndex(in);
+                    final byte protocolVersion = in.getByte(protocolNameIndex + 2 + in.getUnsignedShort(protocolNameIndex));
+                    in.release();
+                    shedConnects.incrementAndGet();
+                    final byte returnCode = protocolVersion == Utils.VERSION_5 ? ConnAckMessage.SERVER_UNAVAILABLE_5 : ConnAckMessage.SERVER_UNAVAILABLE;
+                    ctx.writeAndFlush(PacketEncoder.connAck(ctx.alloc(), protocolVersion, returnCode)).addListener(ChannelFutureListener.CLOSE);
+                    return;
+                }
+                // only the first packet may be a CONNECT
+                ctx.pipeline().remove(this);
+            }
+            super.channelRead(ctx, msg);
+        }
+    }
+}
@@ -1,37 +1,114 @@
 package com.github.sylvek.wsmqttfwd;
 
+import com.github.sylvek.wsmqttfwd.journal.Journal;
+import com.github.sylvek.wsmqttfwd.journal.StoreAndForward;
+import com.github.sylvek.wsmqttfwd.message.AbstractMessage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
 import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoop;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
 
 /**
  * @author Sylvain Maucourt
  */
 public class ForwardToMQTTBrokerHandler extends ChannelInboundHandlerAdapter {
 
+    private static final Logger LOG = LoggerFactory.getLogger(ForwardToMQTTBrokerHandler.class);
+
+    private static final long MIN_RECONNECT_DELAY = 1000;
+    private static final long MAX_RECONNECT_DELAY = 30000;
+
     private final String host;
     private final int port;
+    // replaces host and port, any address of the transport of the client connections
+    private final SocketAddress brokerAddress;
+    private final BackendInitializer backendInitializer;
+    private final BackendConnectLimiter connectLimiter;
+    private final Journal journal;
 
     private volatile Channel outboundChannel;
 
+    // keeps the session open during a broker outage, null if disabled
+    private StoreAndForward storeAndForward;
+    private long reconnectDelay = MIN_RECONNECT_DELAY;
+
+    private boolean connectRequested;
+    private Future<Void> connectPermit;
+    // messages received before the broker connection is active
+    private List<Object> pendingMessages;
+
     public ForwardToMQTTBrokerHandler(String host, int port)
+    {
+        this(host, port, null, null, null);
+    }
+
+    public ForwardToMQTTBrokerHandler(String host, int port, BackendInitializer backendInitializer, BackendConnectLimiter connectLimiter, Journal journal)
+    {
+        this(host, port, null, backendInitializer, connectLimiter, journal);
+    }
+
+    /**
+     * The broker connection uses the transport of the client connection, so a LocalChannel client is forwarded to a local broker address.
+     */
+    public ForwardToMQTTBrokerHandler(SocketAddress brokerAddress, BackendInitializer backendInitializer, BackendConnectLimiter connectLimiter, Journal journal)
+    {
+        this(null, 0, brokerAddress, backendInitializer, connectLimiter, journal);
+    }
+
+    private ForwardToMQTTBrokerHandler(String host, int port, SocketAddress brokerAddress, BackendInitializer backendInitializer, BackendConnectLimiter connectLimiter, Journal journal)
     {
         this.host = host;
         this.port = port;
+        this.brokerAddress = brokerAddress;
+        this.backendInitializer = backendInitializer;
+        this.connectLimiter = connectLimiter;
+        this.journal = journal;
+    }
+
+    /**
+     * Allows to insert handlers in the broker connection pipeline, in front of the forwarding one.
+     */
+    public interface BackendInitializer {
+        void initBackend(Channel inboundChannel, ChannelPipeline pipeline);
     }
 
     public static class HexDumpProxyBackendHandler extends ChannelInboundHandlerAdapter {
 
         private final Channel inboundChannel;
+        private final Runnable backendLost;
 
         public HexDumpProxyBackendHandler(Channel inboundChannel)
+        {
+            this(inboundChannel, null);
+        }
+
+        /**
+         * @param backendLost called instead of closing the client connection when the broker connection is lost
+         */
+        public HexDumpProxyBackendHandler(Channel inboundChannel, Runnable backendLost)
         {
             this.inboundChannel = inboundChannel;
+            this.backendLost = backendLost;
         }
 
         @Override
@@ -55,7 +132,11 @@ public class ForwardToMQTTBrokerHandler extends ChannelInboundHandlerAdapter {
         @Override
         public void channelInactive(ChannelHandlerContext ctx)
         {
-            ForwardToMQTTBrokerHandler.closeOnFlush(inboundChannel);
+            if (backendLost != null) {
+                backendLost.run();
+            } else {
+                ForwardToMQTTBrokerHandler.closeOnFlush(inboundChannel);
+            }
         }
 
         @Override
@@ -66,8 +147,84 @@ public class ForwardToMQTTBrokerHandler extends ChannelInboundHandlerAdapter {
         }
     }
 
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception
+    {
+        // added to an open client connection, when a client leaves the upstream pool
+        if (ctx.channel().isActive()) {
+            initSession(ctx);
+        }
+    }
+
     @Override
     public void channelActive(ChannelHandlerContext ctx) throws Exception
+    {
+        initSession(ctx);
+        // the broker connection is opened by the first message, the CONNECT accepted by the authentication
+
+        super.channelActive(ctx);
+    }
+
+    private void initSession(ChannelHandlerContext ctx)
+    {
+        if (journal != null && storeAndForward == null) {
+            storeAndForward = new StoreAndForward(journal, ctx.channel());
+        }
+    }
+
+    private void connectWithPermit(ChannelHandlerContext ctx)
+    {
+        if (connectLimiter == null) {
+            connect(ctx);
+        } else {
+            final EventLoop loop = ctx.channel().eventLoop();
+            connectPermit = connectLimiter.acquire(loop);
+            connectPermit.addListener((FutureListener<Void>) permit -> {
+                if (!permit.isSuccess()) {
+                    if (!permit.isCancelled()) {
+                        LOG.debug("backend connection refused: {}", permit.cause().getMessage());
+                        connectFailed(ctx);
+                    }
+                } else if (ctx.channel().isActive()) {
+                    connect(ctx).addListener(future -> connectLimiter.release(loop));
+                } else {
+                    connectLimiter.release(loop);
+                }
+            });
+        }
+    }
+
+    private void connectFailed(ChannelHandlerContext ctx)
+    {
+        if (storeAndForward != null && !storeAndForward.isOnline()) {
+            scheduleReconnect(ctx);
+        } else {
+            ctx.close();
+        }
+    }
+
+    private void backendLost(ChannelHandlerContext ctx)
+    {
+        if (ctx.channel().isActive() && storeAndForward.startOutage()) {
+            LOG.info("broker connection lost, keeping {} open", ctx.channel());
+            reconnectDelay = MIN_RECONNECT_DELAY;
+            scheduleReconnect(ctx);
+        } else {
+            closeOnFlush(ctx.channel());
+        }
+    }
+
+    private void scheduleReconnect(ChannelHandlerContext ctx)
+    {
+        ctx.channel().eventLoop().schedule(() -> {
+            if (ctx.channel().isActive()) {
+                connectWithPermit(ctx);
+            }
+        }, reconnectDelay, TimeUnit.MILLISECONDS);
+        reconnectDelay = Math.min(reconnectDelay * 2, MAX_RECONNECT_DELAY);
+    }
+
+    private ChannelFuture connect(ChannelHandlerContext ctx)
     {
         final Channel inboundChannel = ctx.channel();
 
@@ -75,35 +232,114 @@ public class ForwardToMQTTBrokerHandler extends ChannelInboundHandlerAdapter {
         Bootstrap b = new Bootstrap();
         b.group(inboundChannel.eventLoop())
                 .channel(ctx.channel().getClass())
-                .handler(new HexDumpProxyBackendHandler(inboundChannel))
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) throws Exception
+                    {
+                        if (backendInitializer != null) {
+                            backendInitializer.initBackend(inboundChannel, ch.pipeline());
+                        }
+                        if (storeAndForward != null) {
+                            ch.pipeline().addLast("storeAndForward", storeAndForward.newBackendHandler());
+                            ch.pipeline().addLast("proxy", new HexDumpProxyBackendHandler(inboundChannel, () -> backendLost(ctx)));
+                        } else {
+                            ch.pipeline().addLast("proxy", new HexDumpProxyBackendHandler(inboundChannel));
+                        }
+                    }
+                })
                 .option(ChannelOption.AUTO_READ, false);
-        ChannelFuture f = b.connect(this.host, this.port);
+        ChannelFuture f = this.brokerAddress != null ? b.connect(this.brokerAddress) : b.connect(this.host, this.port);
         outboundChannel = f.channel();
         f.addListener((ChannelFutureListener) future -> {
             if (future.isSuccess()) {
-                // connection complete start to read first data
-                inboundChannel.read();
+                if (storeAndForward != null && !storeAndForward.isOnline()) {
+                    // reconnected after an outage
+                    storeAndForward.replay(outboundChannel);
+                    return;
+                }
+                // connection complete, forward the early messages and start to read first data
+                writePendingMessages(ctx);
+                if (!EventLoopLagMonitor.isReadPaused(inboundChannel)) {
+                    inboundChannel.read();
+                }
             } else {
                 // Close the connection if the connection attempt has failed.
-                inboundChannel.close();
+                connectFailed(ctx);
             }
         });
+        return f;
+    }
 
-        super.channelActive(ctx);
+    private void writePendingMessages(ChannelHandlerContext ctx)
+    {
+        if (pendingMessages != null) {
+            for (Object msg : pendingMessages) {
+                if (msg instanceof ByteBuf) {
+                    final ByteBuf packet = (ByteBuf) msg;
+                    requestSent(ctx.channel(), packet);
+                    if (storeAndForward != null) {
+                        storeAndForward.sent(packet);
+                    }
+                }
+                outboundChannel.write(msg);
+            }
+            pendingMessages = null;
+            outboundChannel.flush();
+            EventLoopLagMonitor.setAutoRead(ctx.channel(), true);
+        }
+    }
+
+    /**
+     * The broker round trips start when the request leaves, not when the client sent it.
+     * A PINGREQ answered locally never gets here, so it is not waiting for a PINGRESP.
+     */
+    private static void requestSent(Channel inboundChannel, ByteBuf packet)
+    {
+        final byte messageType = (byte) ((packet.getByte(packet.readerIndex()) & 0xF0) >> 4);
+        if (messageType == AbstractMessage.CONNECT) {
+            BrokerRoundTripTracker.connectSent(inboundChannel);
+        } else if (messageType == AbstractMessage.PINGREQ) {
+            BrokerRoundTripTracker.pingSent(inboundChannel);
+        }
     }
 
     @Override
     public void channelRead(final ChannelHandlerContext ctx, Object msg) throws Exception
     {
-        if (outboundChannel.isActive()) {
+        if (storeAndForward != null && msg instanceof ByteBuf) {
+            if (!storeAndForward.isOnline()) {
+                storeAndForward.store(ctx, (ByteBuf) msg);
+                return;
+            }
+            if (outboundChannel != null && outboundChannel.isActive()) {
+                storeAndForward.sent((ByteBuf) msg);
+            }
+        }
+        if (outboundChannel != null && outboundChannel.isActive()) {
+            if (msg instanceof ByteBuf) {
+                requestSent(ctx.channel(), (ByteBuf) msg);
+            }
             outboundChannel.writeAndFlush(msg).addListener((ChannelFutureListener) future -> {
                 if (future.isSuccess()) {
-                    // was able to flush out data, start to read the next chunk
-                    ctx.channel().read();
+                    // was able to flush out data, start to read the next chunk, unless the reads are paused by the lag monitor
+                    if (!EventLoopLagMonitor.isReadPaused(ctx.channel())) {
+                        ctx.channel().read();
+                    }
                 } else {
                     future.channel().close();
                 }
             });
+        } else {
+            if (!connectRequested) {
+                connectRequested = true;
+                connectWithPermit(ctx);
+            }
+            // the broker connection is not ready yet, stop reading until it is
+            if (pendingMessages == null) {
+                pendingMessages = new ArrayList<>(2);
+            }
+            pendingMessages.add(msg);
+            EventLoopLagMonitor.setAutoRead(ctx.channel(), false);
         }
 
         // super.channelRead(ctx, msg);
@@ -112,6 +348,18 @@ public class ForwardToMQTTBrokerHandler extends ChannelInboundHandlerAdapter {
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception
     {
+        if (connectPermit != null) {
+            connectPermit.cancel(false);
+        }
+        if (storeAndForward != null) {
+            storeAndForward.close();
+        }
+        if (pendingMessages != null) {
+            for (Object msg : pendingMessages) {
+                ReferenceCountUtil.release(msg);
+            }
+            pendingMessages = null;
+        }
         if (outboundChannel != null) {
             closeOnFlush(outboundChannel);
         }
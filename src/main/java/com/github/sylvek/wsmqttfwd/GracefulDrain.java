@@ -0,0 +1,134 @@
+package com.github.sylvek.wsmqttfwd;
+
+import com.github.sylvek.wsmqttfwd.admin.AdminServer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.group.ChannelGroup;
+
+/**
+ * Stops accepting connections and closes the existing sessions gradually over a window, so the clients
+ * migrate smoothly to the other nodes instead of reconnecting all at once.
+ * Each session is closed at a random time inside its own slot of the window, the window is extended
+ * if needed to respect the maximum number of closes per second.
+ */
+public class GracefulDrain {
+
+    private static final Logger LOG = LoggerFactory.getLogger(GracefulDrain.class);
+
+    public enum State {
+        RUNNING, DRAINING, DRAINED
+    }
+
+    private final ChannelGroup channels;
+    private final int maxClosesPerSecond;
+    private final CountDownLatch drained = new CountDownLatch(1);
+    private final AtomicInteger remaining = new AtomicInteger();
+
+    private volatile State state = State.RUNNING;
+    private volatile long startedAt;
+    private volatile long window;
+    private volatile int sessions;
+
+    public GracefulDrain(ChannelGroup channels, int maxClosesPerSecond)
+    {
+        this.channels = channels;
+        this.maxClosesPerSecond = maxClosesPerSecond;
+    }
+
+    public State getState()
+    {
+        return state;
+    }
+
+    /**
+     * @return the effective drain window in milliseconds, 0 if not started
+     */
+    public long getWindow()
+    {
+        return window;
+    }
+
+    /**
+     * Start the drain, does nothing if it has already been started.
+     */
+    public synchronized void start(Channel serverChannel, long windowMillis)
+    {
+        if (state != State.RUNNING) {
+            return;
+        }
+        state = State.DRAINING;
+        startedAt = System.currentTimeMillis();
+
+        // stop accepting new connections
+        if (serverChannel != null) {
+            serverChannel.close();
+        }
+
+        final List<Channel> snapshot = new ArrayList<>(channels);
+        final int count = snapshot.size();
+        sessions = count;
+        remaining.set(count);
+        window = maxClosesPerSecond > 0 ? Math.max(windowMillis, count * 1000L / maxClosesPerSecond) : windowMillis;
+        LOG.info("draining {} sessions over {} ms", count, window);
+
+        if (count == 0) {
+            done();
+            return;
+        }
+
+        final long slot = TimeUnit.MILLISECONDS.toNanos(window) / count;
+        for (int i = 0; i < count; i++) {
+            final Channel channel = snapshot.get(i);
+            final long delay = i * slot + (slot > 0 ? ThreadLocalRandom.current().nextLong(slot) : 0);
+            channel.closeFuture().addListener((ChannelFutureListener) future -> {
+                if (remaining.decrementAndGet() == 0) {
+                    done();
+                }
+            });
+            channel.eventLoop().schedule(() -> {
+                channel.close();
+            }, delay, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Wait for the end of the drain, the sessions still open after the timeout are closed at once.
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException
+    {
+        final boolean completed = drained.await(timeout, unit);
+        if (!completed) {
+            LOG.warn("drain not completed, closing {} sessions", remaining.get());
+            channels.close();
+        }
+        return completed;
+    }
+
+    public String status()
+    {
+        final long elapsed = state == State.RUNNING ? 0 : System.currentTimeMillis() - startedAt;
+        return "{\"state\":" + AdminServer.quote(state.name()) +
+                ",\"sessions\":" + sessions +
+                ",\"remaining\":" + (state == State.RUNNING ? channels.size() : remaining.get()) +
+                ",\"windowMillis\":" + window +
+                ",\"elapsedMillis\":" + elapsed + "}";
+    }
+
+    private void done()
+    {
+        state = State.DRAINED;
+        LOG.info("drain completed in {} ms", System.currentTimeMillis() - startedAt);
+        drained.countDown();
+    }
+}
@@ -0,0 +1,168 @@
+package com.github.sylvek.wsmqttfwd;
+
+import com.github.sylvek.wsmqttfwd.admin.AdminServer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import io.netty.util.concurrent.FastThreadLocal;
+
+/**
+ * Keeps the top clientIDs and topics by packets and by bytes, in each direction, over a sliding window.
+ * Each event loop updates its own space-saving sketches, one set per slot of the window, so the memory is fixed
+ * and the locks are only contended when the statistics are read. The slots are merged when they are read.
+ */
+public class HeavyHitters {
+
+    public enum Direction {
+        // client to broker
+        IN,
+        // broker to client
+        OUT
+    }
+
+    private static final String[] KINDS = {"clients", "topics"};
+    private static final String[] METRICS = {"packets", "bytes"};
+    private static final int SKETCHES = KINDS.length * Direction.values().length * METRICS.length;
+
+    private final int capacity;
+    private final long slotMillis;
+    private final int slots;
+
+    private final List<Slot[]> allSlots = new CopyOnWriteArrayList<>();
+    private final FastThreadLocal<Slot[]> loopSlots = new FastThreadLocal<Slot[]>() {
+        @Override
+        protected Slot[] initialValue() throws Exception
+        {
+            final Slot[] window = new Slot[slots];
+            for (int i = 0; i < slots; i++) {
+                window[i] = new Slot(capacity);
+            }
+            allSlots.add(window);
+            return window;
+        }
+    };
+
+    /**
+     * @param capacity number of counters of each sketch, the top keys are accurate when they are much fewer than the capacity
+     * @param windowMillis length of the sliding window
+     * @param slots number of slots of the window, the window slides one slot at a time
+     */
+    public HeavyHitters(int capacity, long windowMillis, int slots)
+    {
+        this.capacity = capacity;
+        this.slotMillis = Math.max(1, windowMillis / slots);
+        this.slots = slots;
+    }
+
+    /**
+     * Count a packet of the given client, the topic is null for the packets other than PUBLISH.
+     */
+    public void record(Direction direction, String clientID, String topic, int bytes)
+    {
+        final long epoch = System.currentTimeMillis() / slotMillis;
+        final Slot[] window = loopSlots.get();
+        final Slot slot = window[(int) (epoch % slots)];
+        synchronized (slot) {
+            if (slot.epoch != epoch) {
+                slot.clear(epoch);
+            }
+            if (clientID != null) {
+                slot.sketches[index(0, direction, 0)].add(clientID, 1);
+                slot.sketches[index(0, direction, 1)].add(clientID, bytes);
+            }
+            if (topic != null) {
+                slot.sketches[index(1, direction, 0)].add(topic, 1);
+                slot.sketches[index(1, direction, 1)].add(topic, bytes);
+            }
+        }
+    }
+
+    public String status(int top)
+    {
+        final long oldest = System.currentTimeMillis() / slotMillis - slots + 1;
+        final List<Map<String, long[]>> merged = new ArrayList<>(SKETCHES);
+        for (int i = 0; i < SKETCHES; i++) {
+            merged.add(new HashMap<>());
+        }
+        for (Slot[] window : allSlots) {
+            for (Slot slot : window) {
+                synchronized (slot) {
+                    if (slot.epoch >= oldest) {
+                        for (int i = 0; i < SKETCHES; i++) {
+                            slot.sketches[i].addTo(merged.get(i));
+                        }
+                    }
+                }
+            }
+        }
+
+        final StringBuilder sb = new StringBuilder();
+        sb.append("{\"windowMillis\":").append(slotMillis * slots);
+        for (int kind = 0; kind < KINDS.length; kind++) {
+            sb.append(",\"").append(KINDS[kind]).append("\":{");
+            for (Direction direction : Direction.values()) {
+                if (direction.ordinal() > 0) {
+                    sb.append(',');
+                }
+                sb.append('"').append(direction.name().toLowerCase()).append("\":{");
+                for (int metric = 0; metric < METRICS.length; metric++) {
+                    if (metric > 0) {
+                        sb.append(',');
+                    }
+                    sb.append('"').append(METRICS[metric]).append("\":");
+                    appendTop(sb, merged.get(index(kind, direction, metric)), top);
+                }
+                sb.append('}');
+            }
+            sb.append('}');
+        }
+        return sb.append('}').toString();
+    }
+
+    private static void appendTop(StringBuilder sb, Map<String, long[]> counters, int top)
+    {
+        final List<Map.Entry<String, long[]>> entries = new ArrayList<>(counters.entrySet());
+        entries.sort((e1, e2) -> Long.compare(e2.getValue()[0], e1.getValue()[0]));
+        sb.append('[');
+        for (int i = 0; i < Math.min(top, entries.size()); i++) {
+            final Map.Entry<String, long[]> entry = entries.get(i);
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"key\":").append(AdminServer.quote(entry.getKey()))
+                    .append(",\"count\":").append(entry.getValue()[0])
+                    .append(",\"error\":").append(entry.getValue()[1]).append('}');
+        }
+        sb.append(']');
+    }
+
+    private static int index(int kind, Direction direction, int metric)
+    {
+        return (kind * 2 + direction.ordinal()) * 2 + metric;
+    }
+
+    private static class Slot {
+
+        final SpaceSavingSketch[] sketches = new SpaceSavingSketch[SKETCHES];
+        long epoch = -1;
+
+        Slot(int capacity)
+        {
+            for (int i = 0; i < SKETCHES; i++) {
+                sketches[i] = new SpaceSavingSketch(capacity);
+            }
+        }
+
+        void clear(long epoch)
+        {
+            for (SpaceSavingSketch sketch : sketches) {
+                sketch.clear();
+            }
+            this.epoch = epoch;
+        }
+    }
+}
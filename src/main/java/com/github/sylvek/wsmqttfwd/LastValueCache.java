@@ -0,0 +1,296 @@
+package com.github.sylvek.wsmqttfwd;
+
+import com.github.sylvek.wsmqttfwd.decoder.MqttProperties;
+import com.github.sylvek.wsmqttfwd.decoder.Utils;
+import com.github.sylvek.wsmqttfwd.encoder.PacketEncoder;
+import com.github.sylvek.wsmqttfwd.message.AbstractMessage;
+import com.github.sylvek.wsmqttfwd.message.SubscribeMessage;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.AttributeKey;
+import io.netty.util.CharsetUtil;
+
+/**
+ * Latest payload of each topic delivered by the broker to any client, sent to the clients as soon as they subscribe
+ * instead of waiting for the next update. The cache is bounded in bytes and split into stripes, each one an LRU
+ * locked on its own, so the event loops filling it from their broker connections rarely contend.
+ * A cached value is sent as a QoS0 retained PUBLISH once the broker granted the subscription, only if the client may read the topic.
+ */
+public class LastValueCache {
+
+    private static final AttributeKey<Map<Integer, PendingSubscribe>> PENDING_SUBSCRIBES = AttributeKey.valueOf("pendingSubscribes");
+
+    private static final int STRIPES = 16;
+    // approximate size of an entry besides its topic and payload
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final long maxBytesPerStripe;
+
+    private final AtomicLong updates = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+
+    /**
+     * @param maxBytes approximate memory used by the cached topics and payloads
+     */
+    public LastValueCache(long maxBytes)
+    {
+        this.maxBytesPerStripe = maxBytes / STRIPES;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Handler of the broker connection of a client, caching the PUBLISH packets it delivers.
+     * It expects one complete packet per ByteBuf (see {@link com.github.sylvek.wsmqttfwd.decoder.PacketSplitter}).
+     */
+    public ChannelHandler newBackendHandler(Channel inboundChannel)
+    {
+        return new BackendHandler(inboundChannel);
+    }
+
+    public String status()
+    {
+        int topics = 0;
+        long bytes = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                topics += stripe.size();
+                bytes += stripe.bytes;
+            }
+        }
+        return "{\"topics\":" + topics +
+                ",\"bytes\":" + bytes +
+                ",\"maxBytes\":" + maxBytesPerStripe * STRIPES +
+                ",\"updates\":" + updates.get() +
+                ",\"evictions\":" + evictions.get() +
+                ",\"hits\":" + hits.get() +
+                ",\"sent\":" + sent.get() + "}";
+    }
+
+    private Stripe stripe(String topic)
+    {
+        final int h = topic.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+
+    /**
+     * Cache the payload of a PUBLISH packet, unless the same payload is already cached.
+     */
+    void update(String topic, ByteBuf payload, boolean retain)
+    {
+        final Stripe stripe = stripe(topic);
+        final byte[] cached;
+        synchronized (stripe) {
+            cached = stripe.get(topic);
+        }
+        final boolean removal = retain && !payload.isReadable();
+        if (cached != null && !removal && ByteBufUtil.equals(Unpooled.wrappedBuffer(cached), payload)) {
+            return;
+        }
+
+        final byte[] value = new byte[payload.readableBytes()];
+        payload.getBytes(payload.readerIndex(), value);
+        updates.incrementAndGet();
+        synchronized (stripe) {
+            // an empty retained payload clears the retained value of the topic
+            final byte[] previous = removal ? stripe.remove(topic) : stripe.put(topic, value);
+            if (previous != null) {
+                stripe.bytes -= sizeOf(topic, previous);
+            }
+            if (!removal) {
+                stripe.bytes += sizeOf(topic, value);
+            }
+            while (stripe.bytes > maxBytesPerStripe && !stripe.isEmpty()) {
+                final Map.Entry<String, byte[]> eldest = stripe.entrySet().iterator().next();
+                stripe.bytes -= sizeOf(eldest.getKey(), eldest.getValue());
+                stripe.remove(eldest.getKey());
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Called when a SUBSCRIBE is forwarded to the broker, the cached values are sent when the broker grants it.
+     */
+    void subscribing(Channel inboundChannel, SubscribeMessage subscribeMessage, String clientID, byte protocolVersion,
+                     AuthenticationHandler.MqttListener mqttListener)
+    {
+        Map<Integer, PendingSubscribe> pending = inboundChannel.attr(PENDING_SUBSCRIBES).get();
+        if (pending == null) {
+            pending = new HashMap<>(4);
+            inboundChannel.attr(PENDING_SUBSCRIBES).set(pending);
+        }
+        pending.put(subscribeMessage.getMessageID(), new PendingSubscribe(subscribeMessage.subscriptions(), clientID, protocolVersion, mqttListener));
+    }
+
+    /**
+     * Write to the client the cached values matching the subscriptions granted by a SUBACK, if it may read them.
+     */
+    private void subscribed(Channel inboundChannel, ByteBuf subAck)
+    {
+        final Map<Integer, PendingSubscribe> pendingSubscribes = inboundChannel.attr(PENDING_SUBSCRIBES).get();
+        if (pendingSubscribes == null) {
+            return;
+        }
+        final int messageIDIndex = Utils.variableHeaderIndex(subAck);
+        final PendingSubscribe pending = pendingSubscribes.remove(subAck.getUnsignedShort(messageIDIndex));
+        if (pending == null) {
+            return;
+        }
+        int codeIndex = messageIDIndex + 2;
+        if (pending.protocolVersion == Utils.VERSION_5) {
+            final int propertiesLength = MqttProperties.getVariableByteInteger(subAck, codeIndex);
+            codeIndex += MqttProperties.variableByteIntegerLength(subAck, codeIndex) + propertiesLength;
+        }
+        final int end = subAck.readerIndex() + Utils.packetLength(subAck);
+
+        // a topic matched by several filters is sent once
+        final Map<String, byte[]> matching = new LinkedHashMap<>();
+        for (int i = 0; i < pending.subscriptions.size() && codeIndex + i < end; i++) {
+            final SubscribeMessage.Couple subscription = pending.subscriptions.get(i);
+            final String topicFilter = subscription.topicFilter;
+            // the failure return codes are 0x80 and above
+            if (subAck.getByte(codeIndex + i) < 0 || topicFilter.startsWith("$share/")
+                    || (pending.protocolVersion == Utils.VERSION_5 && subscription.retainHandling() == 2)) {
+                continue;
+            }
+            if (!TopicMatcher.isWildcard(topicFilter)) {
+                final Stripe stripe = stripe(topicFilter);
+                synchronized (stripe) {
+                    final byte[] value = stripe.get(topicFilter);
+                    if (value != null) {
+                        matching.put(topicFilter, value);
+                    }
+                }
+                continue;
+            }
+            for (Stripe stripe : stripes) {
+                // the stripe is only locked to copy its entries, the filter is matched outside of the lock
+                final String[] topics;
+                final byte[][] values;
+                synchronized (stripe) {
+                    topics = new String[stripe.size()];
+                    values = new byte[topics.length][];
+                    int j = 0;
+                    for (Map.Entry<String, byte[]> entry : stripe.entrySet()) {
+                        topics[j] = entry.getKey();
+                        values[j++] = entry.getValue();
+                    }
+                }
+                for (int j = 0; j < topics.length; j++) {
+                    if (TopicMatcher.matches(topicFilter, topics[j])) {
+                        matching.put(topics[j], values[j]);
+                    }
+                }
+            }
+        }
+
+        if (matching.isEmpty()) {
+            return;
+        }
+        hits.incrementAndGet();
+        for (Map.Entry<String, byte[]> entry : matching.entrySet()) {
+            if (pending.mqttListener == null || pending.mqttListener.checkReadTopic(pending.clientID, entry.getKey())) {
+                sent.incrementAndGet();
+                inboundChannel.write(PacketEncoder.publish(inboundChannel.alloc(), pending.protocolVersion, entry.getKey(), entry.getValue(), true));
+            }
+        }
+        inboundChannel.flush();
+    }
+
+    private static int sizeOf(String topic, byte[] value)
+    {
+        return ENTRY_OVERHEAD + 2 * topic.length() + value.length;
+    }
+
+    /**
+     * LRU of the topics, the eviction is done by the cache to keep the stripe below its size in bytes.
+     */
+    private static class Stripe extends LinkedHashMap<String, byte[]> {
+
+        private static final long serialVersionUID = 1L;
+
+        long bytes;
+
+        Stripe()
+        {
+            super(16, 0.75f, true);
+        }
+    }
+
+    private static class PendingSubscribe {
+
+        final List<SubscribeMessage.Couple> subscriptions;
+        final String clientID;
+        final byte protocolVersion;
+        final AuthenticationHandler.MqttListener mqttListener;
+
+        PendingSubscribe(List<SubscribeMessage.Couple> subscriptions, String clientID, byte protocolVersion, AuthenticationHandler.MqttListener mqttListener)
+        {
+            this.subscriptions = subscriptions;
+            this.clientID = clientID;
+            this.protocolVersion = protocolVersion;
+            this.mqttListener = mqttListener;
+        }
+    }
+
+    private class BackendHandler extends ChannelInboundHandlerAdapter {
+
+        private final Channel inboundChannel;
+
+        BackendHandler(Channel inboundChannel)
+        {
+            this.inboundChannel = inboundChannel;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception
+        {
+            if (msg instanceof ByteBuf && ((((ByteBuf) msg).getByte(((ByteBuf) msg).readerIndex()) & 0xF0) >> 4) == AbstractMessage.SUBACK) {
+                // the SUBACK is released and its reader index moved once forwarded to the client, the cached values follow it
+                final ByteBuf subAck = ((ByteBuf) msg).duplicate().retain();
+                try {
+                    super.channelRead(ctx, msg);
+                    subscribed(inboundChannel, subAck);
+                } finally {
+                    subAck.release();
+                }
+                return;
+            }
+            if (msg instanceof ByteBuf && ((((ByteBuf) msg).getByte(((ByteBuf) msg).readerIndex()) & 0xF0) >> 4) == AbstractMessage.PUBLISH) {
+                final ByteBuf in = (ByteBuf) msg;
+                final int h1 = in.getByte(in.readerIndex());
+                final int topicIndex = Utils.variableHeaderIndex(in);
+                final int topicLength = in.getUnsignedShort(topicIndex);
+                // a topic replaced by a broker topic alias is not cached
+                if (topicLength > 0) {
+                    int index = topicIndex + 2 + topicLength + ((h1 & 0x06) != 0 ? 2 : 0);
+                    final Byte protocolVersion = inboundChannel.attr(AuthenticationHandler.PROTOCOL_VERSION).get();
+                    if (protocolVersion != null && protocolVersion == Utils.VERSION_5) {
+                        final int propertiesLength = MqttProperties.getVariableByteInteger(in, index);
+                        index += MqttProperties.variableByteIntegerLength(in, index) + propertiesLength;
+                    }
+                    final int end = in.readerIndex() + Utils.packetLength(in);
+                    update(in.toString(topicIndex + 2, topicLength, CharsetUtil.UTF_8), in.slice(index, end - index), (h1 & 0x01) != 0);
+                }
+            }
+            super.channelRead(ctx, msg);
+        }
+    }
+}
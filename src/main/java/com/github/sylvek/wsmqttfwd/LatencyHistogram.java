@@ -0,0 +1,73 @@
+package com.github.sylvek.wsmqttfwd;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed memory latency histogram with power of two buckets in microseconds.
+ * It has a single writer (its event loop), the readers merge the histograms of all the event loops.
+ */
+public class LatencyHistogram {
+
+    // bucket i counts the values in [2^(i-1), 2^i[ microseconds, the last one is open
+    static final int BUCKETS = 40;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /**
+     * Must only be called from the owner thread.
+     */
+    public void record(long nanos)
+    {
+        final long micros = nanos / 1000;
+        final int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        counts.lazySet(bucket, counts.get(bucket) + 1);
+    }
+
+    public void addTo(long[] totals)
+    {
+        for (int i = 0; i < BUCKETS; i++) {
+            totals[i] += counts.get(i);
+        }
+    }
+
+    /**
+     * Summarize merged bucket counts, the percentiles are the upper bounds of their buckets.
+     */
+    public static String summary(long[] totals)
+    {
+        long count = 0;
+        int max = -1;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += totals[i];
+            if (totals[i] > 0) {
+                max = i;
+            }
+        }
+        return "{\"count\":" + count +
+                ",\"p50Micros\":" + percentile(totals, count, 0.5) +
+                ",\"p90Micros\":" + percentile(totals, count, 0.9) +
+                ",\"p99Micros\":" + percentile(totals, count, 0.99) +
+                ",\"maxMicros\":" + (max < 0 ? 0 : upperBound(max)) + "}";
+    }
+
+    private static long percentile(long[] totals, long count, double percentile)
+    {
+        if (count == 0) {
+            return 0;
+        }
+        final long rank = (long) Math.ceil(count * percentile);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += totals[i];
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    private static long upperBound(int bucket)
+    {
+        return 1L << bucket;
+    }
+}
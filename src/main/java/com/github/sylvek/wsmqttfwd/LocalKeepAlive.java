@@ -0,0 +1,174 @@
+package com.github.sylvek.wsmqttfwd;
+
+import com.github.sylvek.wsmqttfwd.decoder.Utils;
+import com.github.sylvek.wsmqttfwd.encoder.PacketEncoder;
+import com.github.sylvek.wsmqttfwd.message.AbstractMessage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.timeout.IdleState;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+
+/**
+ * Answers the client PINGREQ packets locally and keeps the broker connection alive on its own schedule.
+ * The keep alive of the CONNECT forwarded to the broker is replaced by the broker keep alive, the forwarder then
+ * closes the clients silent for one and a half times their own keep alive, as the broker would have done,
+ * and sends a PINGREQ to the broker when nothing was written to it for half the broker keep alive.
+ */
+public class LocalKeepAlive {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LocalKeepAlive.class);
+
+    private final int brokerKeepAlive;
+
+    private final AtomicLong answered = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+
+    /**
+     * @param brokerKeepAlive keep alive of the broker connections, in seconds
+     */
+    public LocalKeepAlive(int brokerKeepAlive)
+    {
+        this.brokerKeepAlive = brokerKeepAlive;
+    }
+
+    public ChannelHandler newClientHandler()
+    {
+        return new ClientHandler();
+    }
+
+    public void initBackend(Channel inboundChannel, ChannelPipeline pipeline)
+    {
+        pipeline.addLast("keepAliveIdle", new IdleStateHandler(0, Math.max(1, brokerKeepAlive / 2), 0));
+        pipeline.addLast("keepAlive", new BackendHandler(inboundChannel));
+    }
+
+    public String status()
+    {
+        return "{\"brokerKeepAlive\":" + brokerKeepAlive +
+                ",\"answered\":" + answered.get() +
+                ",\"sent\":" + sent.get() +
+                ",\"timedOut\":" + timedOut.get() + "}";
+    }
+
+    private static boolean isSinglePacket(ByteBuf in, byte messageType)
+    {
+        return ((in.getByte(in.readerIndex()) & 0xF0) >> 4) == messageType && Utils.packetLength(in) == in.readableBytes();
+    }
+
+    private class ClientHandler extends ChannelInboundHandlerAdapter {
+
+        private boolean connectSeen;
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception
+        {
+            if (msg instanceof ByteBuf) {
+                final ByteBuf in = (ByteBuf) msg;
+                if (isSinglePacket(in, AbstractMessage.PINGREQ)) {
+                    in.release();
+                    answered.incrementAndGet();
+                    ctx.writeAndFlush(PacketEncoder.pingResp(ctx.alloc()));
+                    return;
+                }
+                if (!connectSeen && ((in.getByte(in.readerIndex()) & 0xF0) >> 4) == AbstractMessage.CONNECT && Utils.packetLength(in) > 0) {
+                    connectSeen = true;
+                    replaceKeepAlive(ctx, in);
+                }
+            }
+            super.channelRead(ctx, msg);
+        }
+
+        private void replaceKeepAlive(ChannelHandlerContext ctx, ByteBuf in)
+        {
+            final int protocolNameIndex = Utils.variableHeaderIndex(in);
+            // protocol name, level and flags
+            final int keepAliveIndex = protocolNameIndex + 2 + in.getUnsignedShort(protocolNameIndex) + 2;
+            final int keepAlive = in.getUnsignedShort(keepAliveIndex);
+            in.setShort(keepAliveIndex, brokerKeepAlive);
+            if (keepAlive > 0) {
+                ctx.pipeline().addBefore(ctx.name(), "clientKeepAliveIdle", new IdleStateHandler(keepAlive * 3000L / 2, 0, 0, TimeUnit.MILLISECONDS));
+            }
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception
+        {
+            if (evt instanceof IdleStateEvent && ((IdleStateEvent) evt).state() == IdleState.READER_IDLE) {
+                LOG.debug("client keep alive expired, closing {}", ctx.channel());
+                timedOut.incrementAndGet();
+                ctx.close();
+                return;
+            }
+            super.userEventTriggered(ctx, evt);
+        }
+    }
+
+    private class BackendHandler extends ChannelInboundHandlerAdapter {
+
+        private final Channel inboundChannel;
+
+        private boolean connected;
+        private int pendingPings;
+
+        BackendHandler(Channel inboundChannel)
+        {
+            this.inboundChannel = inboundChannel;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception
+        {
+            // the broker packets are complete when the keep alive is local (see PacketSplitter)
+            if (msg instanceof ByteBuf) {
+                final ByteBuf in = (ByteBuf) msg;
+                final byte messageType = (byte) ((in.getByte(in.readerIndex()) & 0xF0) >> 4);
+                if (messageType == AbstractMessage.CONNACK) {
+                    connected = true;
+                } else if (messageType == AbstractMessage.PINGRESP && pendingPings > 0) {
+                    pendingPings--;
+                    in.release();
+                    ctx.read();
+                    return;
+                }
+            }
+            super.channelRead(ctx, msg);
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception
+        {
+            if (evt instanceof IdleStateEvent) {
+                // nothing may be sent before the CONNECT of the client
+                if (connected && ((IdleStateEvent) evt).state() == IdleState.WRITER_IDLE) {
+                    pendingPings++;
+                    sent.incrementAndGet();
+                    BrokerRoundTripTracker.pingSent(inboundChannel);
+                    ctx.writeAndFlush(PacketEncoder.pingReq(ctx.alloc()));
+                }
+                return;
+            }
+            super.userEventTriggered(ctx, evt);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception
+        {
+            connected = false;
+            pendingPings = 0;
+            super.channelInactive(ctx);
+        }
+    }
+}
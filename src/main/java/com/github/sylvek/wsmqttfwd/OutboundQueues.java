@@ -0,0 +1,253 @@
+package com.github.sylvek.wsmqttfwd;
+
+import com.github.sylvek.wsmqttfwd.decoder.PacketView;
+import com.github.sylvek.wsmqttfwd.decoder.Utils;
+import com.github.sylvek.wsmqttfwd.message.AbstractMessage;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * Bounded queue of the PUBLISH packets sent by the broker to each client, so a slow client does not stall its broker connection.
+ * While the client connection is writable nothing is queued. Once it is not, the PUBLISH packets are queued and their writes
+ * completed at once, so the broker connection keeps being read, until the queue holds maxBytes. Beyond that a QoS0 PUBLISH
+ * is dropped or conflated according to the policy, while a QoS1 or QoS2 PUBLISH is still queued but its write is only
+ * completed once really written, which pauses the reads of the broker connection until the client catches up.
+ * As with the priority lanes the other packets are not queued, except the DISCONNECT which stays behind the PUBLISH packets.
+ * A MQTT 5 PUBLISH carrying a topic alias is never dropped nor conflated: the following packets of the broker depend on it.
+ */
+public class OutboundQueues {
+
+    public enum Policy {
+        // the oldest queued QoS0 PUBLISH is dropped
+        DROP_OLDEST,
+        // the new QoS0 PUBLISH is dropped
+        DROP_NEWEST,
+        // a queued QoS0 PUBLISH is replaced by the next one of the same topic, otherwise the oldest is dropped
+        CONFLATE
+    }
+
+    private final int maxBytes;
+    private final Policy policy;
+
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong droppedOldest = new AtomicLong();
+    private final AtomicLong droppedNewest = new AtomicLong();
+    private final AtomicLong conflated = new AtomicLong();
+    private final AtomicLong blocked = new AtomicLong();
+
+    /**
+     * @param maxBytes size of the queued packets beyond which the QoS0 PUBLISH are dropped and the broker connection paused
+     */
+    public OutboundQueues(int maxBytes, Policy policy)
+    {
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+    }
+
+    public ChannelHandler newHandler()
+    {
+        return new QueueHandler();
+    }
+
+    public String status()
+    {
+        return "{\"maxBytes\":" + maxBytes +
+                ",\"policy\":\"" + policy + "\"" +
+                ",\"queued\":" + queued.get() +
+                ",\"droppedOldest\":" + droppedOldest.get() +
+                ",\"droppedNewest\":" + droppedNewest.get() +
+                ",\"conflated\":" + conflated.get() +
+                ",\"blocked\":" + blocked.get() + "}";
+    }
+
+    private static class Entry {
+
+        Object msg;
+        int length;
+        // null once the write has been completed
+        ChannelPromise promise;
+        // only set for the QoS0 PUBLISH packets, which may be dropped
+        String topic;
+    }
+
+    private class QueueHandler extends ChannelDuplexHandler {
+
+        private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+        private final PacketView view = new PacketView();
+        // queued QoS0 PUBLISH of each topic, only with the CONFLATE policy
+        private Map<String, Entry> byTopic;
+        private int queuedBytes;
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception
+        {
+            if (queue.isEmpty() && ctx.channel().isWritable()) {
+                ctx.write(msg, promise);
+                return;
+            }
+
+            final Entry entry = new Entry();
+            entry.msg = msg;
+            entry.promise = promise;
+            if (msg instanceof ByteBuf && ((ByteBuf) msg).isReadable()) {
+                final ByteBuf packet = (ByteBuf) msg;
+                final byte header = packet.getByte(packet.readerIndex());
+                final byte messageType = (byte) ((header & 0xF0) >> 4);
+                if (messageType != AbstractMessage.PUBLISH && messageType != AbstractMessage.DISCONNECT) {
+                    ctx.write(msg, promise);
+                    return;
+                }
+                entry.length = packet.readableBytes();
+                if (messageType == AbstractMessage.PUBLISH && (header & 0x06) == 0 && !hasTopicAlias(ctx, packet)) {
+                    final int topicIndex = Utils.variableHeaderIndex(packet);
+                    entry.topic = packet.toString(topicIndex + 2, packet.getUnsignedShort(topicIndex), CharsetUtil.UTF_8);
+                    if (policy == Policy.CONFLATE && conflate(entry)) {
+                        return;
+                    }
+                    if (queuedBytes + entry.length > maxBytes && !makeRoom(entry.length)) {
+                        droppedNewest.incrementAndGet();
+                        packet.release();
+                        promise.trySuccess();
+                        return;
+                    }
+                }
+            }
+
+            queue.add(entry);
+            queuedBytes += entry.length;
+            queued.incrementAndGet();
+            if (entry.topic != null && policy == Policy.CONFLATE) {
+                if (byTopic == null) {
+                    byTopic = new HashMap<>();
+                }
+                byTopic.put(entry.topic, entry);
+            }
+            if (queuedBytes <= maxBytes) {
+                promise.trySuccess();
+                entry.promise = null;
+            } else {
+                // QoS1 and QoS2 are never dropped, the broker connection waits for the client instead
+                blocked.incrementAndGet();
+            }
+        }
+
+        /**
+         * Without the topic alias handler, the broker may set up its own aliases with a MQTT 5 client: the PUBLISH packets
+         * carrying one are kept in order, an alias-only PUBLISH has no topic to conflate on.
+         */
+        private boolean hasTopicAlias(ChannelHandlerContext ctx, ByteBuf packet)
+        {
+            final Byte protocolVersion = ctx.channel().attr(AuthenticationHandler.PROTOCOL_VERSION).get();
+            if (protocolVersion == null || protocolVersion != Utils.VERSION_5 || !view.wrap(packet, true)) {
+                return false;
+            }
+            final boolean topicAlias = view.topicAlias() != 0;
+            view.clear();
+            return topicAlias;
+        }
+
+        /**
+         * Replace the queued PUBLISH of the same topic by the new one, which takes its place in the queue.
+         */
+        private boolean conflate(Entry entry)
+        {
+            final Entry previous = byTopic == null ? null : byTopic.get(entry.topic);
+            if (previous == null) {
+                return false;
+            }
+            ReferenceCountUtil.release(previous.msg);
+            queuedBytes += entry.length - previous.length;
+            previous.msg = entry.msg;
+            previous.length = entry.length;
+            conflated.incrementAndGet();
+            entry.promise.trySuccess();
+            return true;
+        }
+
+        /**
+         * Drop the oldest queued QoS0 PUBLISH packets until the given length fits, unless the newest must be dropped.
+         */
+        private boolean makeRoom(int length)
+        {
+            if (policy == Policy.DROP_NEWEST) {
+                return false;
+            }
+            final Iterator<Entry> iterator = queue.iterator();
+            while (queuedBytes + length > maxBytes && iterator.hasNext()) {
+                final Entry entry = iterator.next();
+                if (entry.topic != null) {
+                    iterator.remove();
+                    removed(entry);
+                    ReferenceCountUtil.release(entry.msg);
+                    droppedOldest.incrementAndGet();
+                }
+            }
+            return queuedBytes + length <= maxBytes;
+        }
+
+        private void removed(Entry entry)
+        {
+            queuedBytes -= entry.length;
+            if (byTopic != null && entry.topic != null && byTopic.get(entry.topic) == entry) {
+                byTopic.remove(entry.topic);
+            }
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception
+        {
+            if (!queue.isEmpty() && ctx.channel().isWritable()) {
+                while (!queue.isEmpty() && ctx.channel().isWritable()) {
+                    final Entry entry = queue.poll();
+                    removed(entry);
+                    if (entry.promise != null) {
+                        ctx.write(entry.msg, entry.promise);
+                    } else {
+                        ctx.write(entry.msg);
+                    }
+                }
+                ctx.flush();
+            }
+            super.channelWritabilityChanged(ctx);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception
+        {
+            discard();
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void handlerRemoved(ChannelHandlerContext ctx) throws Exception
+        {
+            discard();
+        }
+
+        private void discard()
+        {
+            Entry entry;
+            while ((entry = queue.poll()) != null) {
+                ReferenceCountUtil.release(entry.msg);
+                if (entry.promise != null) {
+                    entry.promise.tryFailure(new ClosedChannelException());
+                }
+            }
+            queuedBytes = 0;
+            byTopic = null;
+        }
+    }
+}
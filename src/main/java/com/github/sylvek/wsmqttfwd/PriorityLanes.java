@@ -0,0 +1,166 @@
+package com.github.sylvek.wsmqttfwd;
+
+import com.github.sylvek.wsmqttfwd.decoder.Utils;
+import com.github.sylvek.wsmqttfwd.message.AbstractMessage;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.FastThreadLocal;
+
+/**
+ * Writes the MQTT control packets ahead of the PUBLISH packets waiting for the connection to become writable.
+ * While the connection is writable everything is written in order, once it is not the PUBLISH packets (and the
+ * DISCONNECT or anything else that must stay behind them) are queued by the handler and written back in order
+ * when the connection becomes writable again, while the other packets are written immediately.
+ * The delay between the write of a control packet and its completion is recorded per direction.
+ */
+public class PriorityLanes {
+
+    public enum Direction {
+        TO_CLIENT,
+        TO_BROKER
+    }
+
+    private final List<LoopStats> allStats = new CopyOnWriteArrayList<>();
+    private final FastThreadLocal<LoopStats> stats = new FastThreadLocal<LoopStats>() {
+        @Override
+        protected LoopStats initialValue() throws Exception
+        {
+            final LoopStats loopStats = new LoopStats();
+            allStats.add(loopStats);
+            return loopStats;
+        }
+    };
+
+    public ChannelHandler newHandler(Direction direction)
+    {
+        return new LaneHandler(direction);
+    }
+
+    public String status()
+    {
+        final StringBuilder sb = new StringBuilder("{");
+        for (Direction direction : Direction.values()) {
+            final long[] delays = new long[LatencyHistogram.BUCKETS];
+            long deferred = 0;
+            for (LoopStats loopStats : allStats) {
+                loopStats.controlDelay[direction.ordinal()].addTo(delays);
+                deferred += loopStats.deferred[direction.ordinal()].get();
+            }
+            if (direction.ordinal() > 0) {
+                sb.append(',');
+            }
+            sb.append('"').append(direction == Direction.TO_CLIENT ? "toClient" : "toBroker").append("\":{")
+                    .append("\"controlDelay\":").append(LatencyHistogram.summary(delays))
+                    .append(",\"deferred\":").append(deferred).append('}');
+        }
+        return sb.append('}').toString();
+    }
+
+    /**
+     * Only the packets which may overtake the PUBLISH stream are control packets. A buffer holding several packets,
+     * or part of one, may carry a PUBLISH after its first packet and stays in order.
+     */
+    private static boolean isControl(Object msg)
+    {
+        if (!(msg instanceof ByteBuf) || !((ByteBuf) msg).isReadable()) {
+            return false;
+        }
+        final ByteBuf packet = (ByteBuf) msg;
+        final byte messageType = (byte) ((packet.getByte(packet.readerIndex()) & 0xF0) >> 4);
+        return messageType != AbstractMessage.PUBLISH && messageType != AbstractMessage.DISCONNECT
+                && Utils.packetLength(packet) == packet.readableBytes();
+    }
+
+    private static class LoopStats {
+
+        final LatencyHistogram[] controlDelay = {new LatencyHistogram(), new LatencyHistogram()};
+        final AtomicLong[] deferred = {new AtomicLong(), new AtomicLong()};
+    }
+
+    private class LaneHandler extends ChannelDuplexHandler {
+
+        private final Direction direction;
+
+        // the deferred messages, each followed by its promise
+        private ArrayDeque<Object> queue;
+
+        LaneHandler(Direction direction)
+        {
+            this.direction = direction;
+        }
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception
+        {
+            if (isControl(msg)) {
+                final long start = System.nanoTime();
+                final ChannelPromise tracked = ctx.newPromise();
+                tracked.addListener((ChannelFutureListener) future -> {
+                    stats.get().controlDelay[direction.ordinal()].record(System.nanoTime() - start);
+                    if (future.isSuccess()) {
+                        promise.trySuccess();
+                    } else {
+                        promise.tryFailure(future.cause());
+                    }
+                });
+                ctx.write(msg, tracked);
+            } else if ((queue == null || queue.isEmpty()) && ctx.channel().isWritable()) {
+                ctx.write(msg, promise);
+            } else {
+                if (queue == null) {
+                    queue = new ArrayDeque<>();
+                }
+                queue.add(msg);
+                queue.add(promise);
+                stats.get().deferred[direction.ordinal()].incrementAndGet();
+            }
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception
+        {
+            if (queue != null && !queue.isEmpty() && ctx.channel().isWritable()) {
+                while (!queue.isEmpty() && ctx.channel().isWritable()) {
+                    ctx.write(queue.poll(), (ChannelPromise) queue.poll());
+                }
+                ctx.flush();
+            }
+            super.channelWritabilityChanged(ctx);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception
+        {
+            discard();
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void handlerRemoved(ChannelHandlerContext ctx) throws Exception
+        {
+            discard();
+        }
+
+        private void discard()
+        {
+            if (queue != null) {
+                while (!queue.isEmpty()) {
+                    ReferenceCountUtil.release(queue.poll());
+                    ((ChannelPromise) queue.poll()).tryFailure(new ClosedChannelException());
+                }
+            }
+        }
+    }
+}
@@ -1,29 +1,52 @@
 package com.github.sylvek.wsmqttfwd;
 
+import com.github.sylvek.wsmqttfwd.admin.AdminServer;
+import com.github.sylvek.wsmqttfwd.allowlist.ClientIDAllowlist;
+import com.github.sylvek.wsmqttfwd.decoder.PacketSplitter;
+import com.github.sylvek.wsmqttfwd.journal.Journal;
+import com.github.sylvek.wsmqttfwd.shared.PooledPublishHandler;
+import com.github.sylvek.wsmqttfwd.shared.SharedSubscriptionHandler;
+import com.github.sylvek.wsmqttfwd.shared.SharedSubscriptions;
+import com.github.sylvek.wsmqttfwd.shared.UpstreamPool;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalServerChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.MessageToMessageDecoder;
 import io.netty.handler.codec.MessageToMessageEncoder;
-import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpRequestDecoder;
 import io.netty.handler.codec.http.HttpResponseEncoder;
 import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
-import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PongWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
 import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GlobalEventExecutor;
 
 /**
  * @author Sylvain Maucourt
@@ -39,18 +62,101 @@ public class Server {
     private int m_mqttBrokerPort = 1883;
     private AuthenticationHandler.MqttListener m_mqttListerner = null;
 
+    private int m_deliveryFilterCacheSize = 0;
+    private long m_deliveryFilterCacheTtl = 0;
+
+    private int m_connectMaxInFlight = 0;
+    private int m_connectMaxInFlightPerLoop = 0;
+    private int m_connectMaxQueued = 0;
+    private long m_connectQueueTimeout = 0;
+    private BackendConnectLimiter m_connectLimiter;
+
+    private File m_journalDirectory = null;
+    private int m_journalSegmentSize = 0;
+    private int m_journalMaxSegments = 0;
+    private int m_journalMaxLiveSegments = Journal.DEFAULT_MAX_SEGMENTS;
+    private long m_journalMaxOutage = 0;
+    private Journal m_journal;
+
+    private boolean m_roundTripTrackingEnabled = false;
+    private BrokerRoundTripTracker m_roundTripTracker;
+
+    private int m_topicAliasMaximum = 0;
+
+    private int m_brokerKeepAlive = 0;
+    private LocalKeepAlive m_localKeepAlive;
+
+    private int m_heavyHittersCapacity = 0;
+    private long m_heavyHittersWindow = 0;
+    private int m_heavyHittersSlots = 0;
+    private HeavyHitters m_heavyHitters;
+
+    private boolean m_sessionRegistryEnabled = false;
+    private SessionRegistry m_sessionRegistry;
+    private SessionRegistry.Takeover m_takeover = SessionRegistry.Takeover.NONE;
+
+    private boolean m_binaryFrameCodec = false;
+
+    private boolean m_priorityLanesEnabled = false;
+    private PriorityLanes m_priorityLanes;
+
+    private int m_outboundQueueMaxBytes = 0;
+    private OutboundQueues.Policy m_outboundQueuePolicy = OutboundQueues.Policy.DROP_OLDEST;
+    private OutboundQueues m_outboundQueues;
+
+    private long m_lagInterval = 0;
+    private long m_acceptLag = 0;
+    private long m_connectLag = 0;
+    private long m_readLag = 0;
+    private EventLoopLagMonitor m_lagMonitor;
+
+    private long m_lastValueCacheMaxBytes = 0;
+    private LastValueCache m_lastValueCache;
+
+    private int m_coalescingMaxFrameSize = 0;
+    private long m_coalescingMaxDelay = 0;
+
+    private boolean m_sharedSubscriptionsEnabled = false;
+    private SharedSubscriptions m_sharedSubscriptions;
+
+    private int m_upstreamPoolSize = 0;
+    private UpstreamPool m_upstreamPool;
+
+    private LocalAddress m_localAddress;
+    private LocalAddress m_localBrokerAddress;
+
+    private String m_adminHost = "127.0.0.1";
+    private int m_adminPort = 0;
+    private AdminServer m_adminServer;
+
+    private long m_drainWindow = 0;
+    private int m_drainMaxClosesPerSecond = 0;
+    private GracefulDrain m_drain;
+
+    private final ChannelGroup m_clientChannels = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+    private Channel m_serverChannel;
+
     private EventLoopGroup m_workerGroup;
     private EventLoopGroup m_bossGroup;
 
-    static class WebSocketFrameToByteBufDecoder extends MessageToMessageDecoder<BinaryWebSocketFrame> {
+    static class WebSocketFrameToByteBufDecoder extends MessageToMessageDecoder<WebSocketFrame> {
 
         @Override
-        protected void decode(ChannelHandlerContext chc, BinaryWebSocketFrame frame, List<Object> out) throws Exception
+        protected void decode(ChannelHandlerContext chc, WebSocketFrame frame, List<Object> out) throws Exception
         {
-            //convert the frame to a ByteBuf
-            ByteBuf bb = frame.content();
-            bb.retain();
-            out.add(bb);
+            if (frame instanceof BinaryWebSocketFrame || frame instanceof ContinuationWebSocketFrame) {
+                //convert the frame to a ByteBuf
+                ByteBuf bb = frame.content();
+                bb.retain();
+                out.add(bb);
+            } else if (frame instanceof PingWebSocketFrame) {
+                chc.writeAndFlush(new PongWebSocketFrame(frame.content().retain()));
+            } else if (frame instanceof CloseWebSocketFrame) {
+                chc.writeAndFlush(frame.retain()).addListener(ChannelFutureListener.CLOSE);
+            } else if (frame instanceof TextWebSocketFrame) {
+                //MQTT is only carried by binary frames
+                chc.writeAndFlush(new CloseWebSocketFrame(1003, "binary frames only")).addListener(ChannelFutureListener.CLOSE);
+            }
         }
     }
 
@@ -59,10 +165,8 @@ public class Server {
         @Override
         protected void encode(ChannelHandlerContext chc, ByteBuf bb, List<Object> out) throws Exception
         {
-            //convert the ByteBuf to a WebSocketFrame
-            BinaryWebSocketFrame result = new BinaryWebSocketFrame();
-            result.content().writeBytes(bb);
-            out.add(result);
+            //wrap the ByteBuf into a WebSocketFrame, retained since the encoder releases it after encode
+            out.add(new BinaryWebSocketFrame(bb.retain()));
         }
     }
 
@@ -87,10 +191,35 @@ public class Server {
         });
     }
 
-    private void stopServer()
+    public void stopServer()
     {
         LOG.info("Server stopping...");
 
+        if (m_drainWindow > 0) {
+            drain(m_drainWindow);
+            try {
+                m_drain.await(m_drain.getWindow() + 5000, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException iex) {
+                throw new IllegalStateException(iex);
+            }
+        }
+
+        if (m_adminServer != null) {
+            m_adminServer.stop();
+        }
+
+        if (m_sharedSubscriptions != null) {
+            m_sharedSubscriptions.stop();
+        }
+
+        if (m_upstreamPool != null) {
+            m_upstreamPool.stop();
+        }
+
+        if (m_lagMonitor != null) {
+            m_lagMonitor.stop();
+        }
+
         Future workerWaiter = m_workerGroup.shutdownGracefully();
         Future bossWaiter = m_bossGroup.shutdownGracefully();
 
@@ -109,7 +238,7 @@ public class Server {
         LOG.info("Server stopped");
     }
 
-    private void initServer(final int port, final String mqttHost, final int mqttPort, final AuthenticationHandler.MqttListener mqttListener)
+    public void initServer(final int port, final String mqttHost, final int mqttPort, final AuthenticationHandler.MqttListener mqttListener)
     {
         this.port = port;
         this.m_mqttBrokerHost = mqttHost;
@@ -117,45 +246,469 @@ public class Server {
         this.m_mqttListerner = mqttListener;
     }
 
-    private void startServer()
+    /**
+     * Enables the authorization of the broker to client deliveries through {@link AuthenticationHandler.MqttListener#checkReadTopic(String, String)}.
+     * Each connection keeps the last cacheSize decisions during cacheTtlMillis.
+     */
+    public void setDeliveryFilter(int cacheSize, long cacheTtlMillis)
+    {
+        this.m_deliveryFilterCacheSize = cacheSize;
+        this.m_deliveryFilterCacheTtl = cacheTtlMillis;
+    }
+
+    /**
+     * Packs the broker to client packets into binary frames of at most maxFrameSize bytes,
+     * a frame is sent at the latest maxDelayMicros after the flush of its first packet.
+     */
+    public void setFrameCoalescing(int maxFrameSize, long maxDelayMicros)
+    {
+        this.m_coalescingMaxFrameSize = maxFrameSize;
+        this.m_coalescingMaxDelay = maxDelayMicros;
+    }
+
+    /**
+     * Replaces the repeated topics of the broker to client publications by topic aliases for the MQTT 5 clients,
+     * using at most maxAliases aliases per connection (within the Topic Alias Maximum of the client).
+     */
+    public void setTopicAliases(int maxAliases)
+    {
+        this.m_topicAliasMaximum = maxAliases;
+    }
+
+    /**
+     * Tracks the top clientIDs and topics by packets and bytes in both directions over a sliding window of windowMillis
+     * divided in slots, with sketches of capacity counters.
+     */
+    public void setHeavyHitters(int capacity, long windowMillis, int slots)
+    {
+        this.m_heavyHittersCapacity = capacity;
+        this.m_heavyHittersWindow = windowMillis;
+        this.m_heavyHittersSlots = slots;
+    }
+
+    /**
+     * Answers the client PINGREQ packets locally, the broker connections are kept alive by the forwarder
+     * with the given keep alive (in seconds) whatever the keep alive of the clients.
+     */
+    public void setLocalKeepAlive(int brokerKeepAlive)
+    {
+        this.m_brokerKeepAlive = brokerKeepAlive;
+    }
+
+    /**
+     * Decodes and encodes the WebSocket frames with a codec dedicated to the binary frames of MQTT:
+     * in place unmasking, no frame object and no payload copy. Only the RFC 6455 clients are accepted.
+     */
+    public void setBinaryFrameCodec(boolean enabled)
+    {
+        this.m_binaryFrameCodec = enabled;
+    }
+
+    /**
+     * Writes the MQTT control packets (PINGRESP, CONNACK, SUBACK...) ahead of the PUBLISH packets waiting
+     * for a connection to become writable, in both directions.
+     */
+    public void setPriorityLanes(boolean enabled)
+    {
+        this.m_priorityLanesEnabled = enabled;
+    }
+
+    /**
+     * Queues up to maxBytes of PUBLISH packets for each client not reading fast enough, so its broker connection keeps being read.
+     * Beyond that the QoS0 PUBLISH packets are dropped or conflated according to the policy, the others pause the broker connection.
+     */
+    public void setOutboundQueue(int maxBytes, OutboundQueues.Policy policy)
+    {
+        this.m_outboundQueueMaxBytes = maxBytes;
+        this.m_outboundQueuePolicy = policy;
+    }
+
+    /**
+     * Measures the lag of the worker event loops every intervalMillis and sheds load when it crosses the thresholds:
+     * stops accepting connections, then refuses the CONNECT packets, then pauses the reads of the clients.
+     * Each level is left once the lag stayed below half of its threshold for 10 measures.
+     */
+    public void setLoadShedding(long intervalMillis, long acceptLagMillis, long connectLagMillis, long readLagMillis)
+    {
+        this.m_lagInterval = intervalMillis;
+        this.m_acceptLag = acceptLagMillis;
+        this.m_connectLag = connectLagMillis;
+        this.m_readLag = readLagMillis;
+    }
+
+    /**
+     * Caches the latest payload of each topic delivered by the broker, up to about maxBytes,
+     * and sends the cached values matching a SUBSCRIBE to the client right away.
+     */
+    public void setLastValueCache(long maxBytes)
+    {
+        this.m_lastValueCacheMaxBytes = maxBytes;
+    }
+
+    /**
+     * Keeps a registry of the live sessions by clientID and remote address, with their traffic statistics.
+     */
+    public void setSessionRegistry(boolean enabled)
+    {
+        this.m_sessionRegistryEnabled = enabled;
+    }
+
+    /**
+     * What to do when a clientID connects while a session with the same clientID is still open, enables the session registry.
+     */
+    public void setDuplicateClientID(SessionRegistry.Takeover takeover)
+    {
+        this.m_takeover = takeover;
+        this.m_sessionRegistryEnabled = true;
+    }
+
+    /**
+     * @return the registry of the live sessions, null if not enabled or not started
+     */
+    public SessionRegistry getSessionRegistry()
+    {
+        return m_sessionRegistry;
+    }
+
+    /**
+     * Answers CONNECT, SUBSCRIBE and PINGREQ locally and serves all the clients from one upstream subscription
+     * per distinct topic filter. Only QoS0 is supported in this mode.
+     * The broker never authenticates these clients, the mode requires a MqttListener authenticating them
+     * (see {@link AuthenticationHandler.MqttListener#authenticatesClients()}) and stays disabled otherwise.
+     */
+    public void setSharedSubscriptions(boolean enabled)
+    {
+        this.m_sharedSubscriptionsEnabled = enabled;
+    }
+
+    /**
+     * Forwards the QoS0 PUBLISH packets of the clients which have not subscribed through a pool of size upstream sessions,
+     * answering their CONNECT and PINGREQ locally. A client gets its own broker connection once it sends any other packet.
+     * The broker never authenticates the pooled clients, the pool requires a MqttListener authenticating them
+     * (see {@link AuthenticationHandler.MqttListener#authenticatesClients()}) and stays disabled otherwise.
+     */
+    public void setUpstreamPool(int size)
+    {
+        this.m_upstreamPoolSize = size;
+    }
+
+    /**
+     * Limits the in-flight connection attempts to the broker (0 for no limit), globally and per event loop.
+     * Up to maxQueued attempts wait at most queueTimeoutMillis for a permit, the others close their client connection.
+     */
+    public void setBackendConnectLimit(int maxInFlight, int maxInFlightPerLoop, int maxQueued, long queueTimeoutMillis)
+    {
+        this.m_connectMaxInFlight = maxInFlight;
+        this.m_connectMaxInFlightPerLoop = maxInFlightPerLoop;
+        this.m_connectMaxQueued = maxQueued;
+        this.m_connectQueueTimeout = queueTimeoutMillis;
+    }
+
+    /**
+     * Keeps the client sessions open during a broker outage of at most maxOutageMillis.
+     * The QoS1 and QoS2 publications are journaled in memory mapped files of segmentSize bytes under directory
+     * (at most maxSegmentsPerSession per session) and replayed once the broker connection is restored.
+     */
+    public void setStoreAndForward(File directory, int segmentSize, int maxSegmentsPerSession, long maxOutageMillis)
+    {
+        setStoreAndForward(directory, segmentSize, maxSegmentsPerSession, Journal.DEFAULT_MAX_SEGMENTS, maxOutageMillis);
+    }
+
+    /**
+     * Keeps the client sessions open during a broker outage, with at most maxSegments segments mapped at the same time by all the sessions.
+     */
+    public void setStoreAndForward(File directory, int segmentSize, int maxSegmentsPerSession, int maxSegments, long maxOutageMillis)
+    {
+        this.m_journalMaxLiveSegments = maxSegments;
+        this.m_journalDirectory = directory;
+        this.m_journalSegmentSize = segmentSize;
+        this.m_journalMaxSegments = maxSegmentsPerSession;
+        this.m_journalMaxOutage = maxOutageMillis;
+    }
+
+    /**
+     * Tracks the broker CONNECT to CONNACK latency, the ping round trip time and the CONNACK return codes.
+     */
+    public void setBrokerRoundTripTracking(boolean enabled)
+    {
+        this.m_roundTripTrackingEnabled = enabled;
+    }
+
+    /**
+     * Listens on a local address of the in-JVM transport instead of the port, and forwards to a broker listening on a local address,
+     * so the whole pipeline can be measured without network.
+     */
+    public void setLocalTransport(LocalAddress address, LocalAddress brokerAddress)
+    {
+        this.m_localAddress = address;
+        this.m_localBrokerAddress = brokerAddress;
+    }
+
+    /**
+     * Exposes the admin endpoints on the given address, the port 0 disables them.
+     */
+    public void setAdmin(String host, int port)
+    {
+        this.m_adminHost = host;
+        this.m_adminPort = port;
+    }
+
+    /**
+     * Drains the sessions over windowMillis when the server stops, closing at most maxClosesPerSecond sessions per second (0 for no limit).
+     */
+    public void setDrain(long windowMillis, int maxClosesPerSecond)
+    {
+        this.m_drainWindow = windowMillis;
+        this.m_drainMaxClosesPerSecond = maxClosesPerSecond;
+    }
+
+    /**
+     * Stops accepting connections and closes the existing sessions gradually over windowMillis.
+     *
+     * @throws IllegalStateException if the server is not started
+     */
+    public void drain(long windowMillis)
+    {
+        if (m_drain == null || m_serverChannel == null) {
+            throw new IllegalStateException("server not started");
+        }
+        m_drain.start(m_serverChannel, windowMillis);
+    }
+
+    public AdminServer getAdminServer()
+    {
+        return m_adminServer;
+    }
+
+    public void startServer()
     {
         LOG.info("Server starting...");
         ServerBootstrap b = new ServerBootstrap();
         m_bossGroup = new NioEventLoopGroup();
         m_workerGroup = new NioEventLoopGroup();
+        m_drain = new GracefulDrain(m_clientChannels, m_drainMaxClosesPerSecond);
+        if (m_connectMaxInFlight > 0 || m_connectMaxInFlightPerLoop > 0) {
+            m_connectLimiter = new BackendConnectLimiter(m_connectMaxInFlight, m_connectMaxInFlightPerLoop, m_connectMaxQueued, m_connectQueueTimeout);
+        }
+        if (m_roundTripTrackingEnabled) {
+            m_roundTripTracker = new BrokerRoundTripTracker(m_mqttBrokerHost + ":" + m_mqttBrokerPort);
+        }
+        if (m_journalDirectory != null) {
+            m_journal = new Journal(m_journalDirectory, m_journalSegmentSize, m_journalMaxSegments, m_journalMaxLiveSegments, m_journalMaxOutage);
+        }
+        if (m_heavyHittersCapacity > 0) {
+            m_heavyHitters = new HeavyHitters(m_heavyHittersCapacity, m_heavyHittersWindow, m_heavyHittersSlots);
+        }
+        if (m_priorityLanesEnabled) {
+            m_priorityLanes = new PriorityLanes();
+        }
+        if (m_lagInterval > 0) {
+            m_lagMonitor = new EventLoopLagMonitor(m_workerGroup, m_lagInterval, m_acceptLag, m_connectLag, m_readLag);
+        }
+        final boolean sharedSubscriptions = m_sharedSubscriptionsEnabled && m_mqttListerner != null && m_mqttListerner.authenticatesClients();
+        if (m_sharedSubscriptionsEnabled && !sharedSubscriptions) {
+            LOG.warn("the shared subscriptions require a MqttListener authenticating the clients, they are disabled");
+        }
+        if (m_lastValueCacheMaxBytes > 0 && !sharedSubscriptions) {
+            m_lastValueCache = new LastValueCache(m_lastValueCacheMaxBytes);
+        }
+        if (m_upstreamPoolSize > 0 && (m_mqttListerner == null || !m_mqttListerner.authenticatesClients())) {
+            LOG.warn("the upstream pool requires a MqttListener authenticating the clients, it is disabled");
+        } else if (m_upstreamPoolSize > 0 && !sharedSubscriptions && m_localAddress == null) {
+            // the pooled sessions are TCP connections, not available over the in-JVM transport
+            m_upstreamPool = new UpstreamPool(m_workerGroup, m_mqttBrokerHost, m_mqttBrokerPort, "wsmqttfwd-pool-" + UUID.randomUUID().toString().substring(0, 8), m_upstreamPoolSize, 60);
+        }
+        if (m_outboundQueueMaxBytes > 0) {
+            m_outboundQueues = new OutboundQueues(m_outboundQueueMaxBytes, m_outboundQueuePolicy);
+        }
+        if (m_brokerKeepAlive > 0) {
+            m_localKeepAlive = new LocalKeepAlive(m_brokerKeepAlive);
+        }
+        if (m_sessionRegistryEnabled) {
+            m_sessionRegistry = new SessionRegistry(m_takeover);
+        }
+        if (m_adminPort > 0) {
+            m_adminServer = new AdminServer();
+            m_adminServer.register("/drain", (method, parameters) -> {
+                if (HttpMethod.POST.equals(method)) {
+                    final List<String> window = parameters.get("window");
+                    drain(window == null ? m_drainWindow : Long.parseLong(window.get(0)));
+                } else if (!HttpMethod.GET.equals(method)) {
+                    return null;
+                }
+                return m_drain.status();
+            });
+            if (m_connectLimiter != null) {
+                m_adminServer.register("/backend-connects", (method, parameters) -> HttpMethod.GET.equals(method) ? m_connectLimiter.status() : null);
+            }
+            if (m_mqttListerner instanceof ClientIDAllowlist) {
+                final ClientIDAllowlist allowlist = (ClientIDAllowlist) m_mqttListerner;
+                m_adminServer.register("/allowlist", (method, parameters) -> HttpMethod.GET.equals(method) ? allowlist.status() : null);
+            }
+            if (m_priorityLanes != null) {
+                m_adminServer.register("/priority-lanes", (method, parameters) -> HttpMethod.GET.equals(method) ? m_priorityLanes.status() : null);
+            }
+            if (m_lagMonitor != null) {
+                m_adminServer.register("/event-loop-lag", (method, parameters) -> HttpMethod.GET.equals(method) ? m_lagMonitor.status() : null);
+            }
+            if (m_upstreamPool != null) {
+                m_adminServer.register("/upstream-pool", (method, parameters) -> HttpMethod.GET.equals(method) ? m_upstreamPool.status() : null);
+            }
+            if (m_lastValueCache != null) {
+                m_adminServer.register("/last-values", (method, parameters) -> HttpMethod.GET.equals(method) ? m_lastValueCache.status() : null);
+            }
+            if (m_outboundQueues != null) {
+                m_adminServer.register("/outbound-queues", (method, parameters) -> HttpMethod.GET.equals(method) ? m_outboundQueues.status() : null);
+            }
+            if (m_localKeepAlive != null) {
+                m_adminServer.register("/keepalive", (method, parameters) -> HttpMethod.GET.equals(method) ? m_localKeepAlive.status() : null);
+            }
+            if (m_sessionRegistry != null) {
+                m_adminServer.register("/sessions", m_sessionRegistry);
+            }
+            if (m_heavyHitters != null) {
+                m_adminServer.register("/heavy-hitters", (method, parameters) -> {
+                    if (!HttpMethod.GET.equals(method)) {
+                        return null;
+                    }
+                    final List<String> top = parameters.get("top");
+                    return m_heavyHitters.status(top == null ? 10 : Integer.parseInt(top.get(0)));
+                });
+            }
+            if (m_journal != null) {
+                m_adminServer.register("/journal", (method, parameters) -> HttpMethod.GET.equals(method) ? m_journal.status() : null);
+            }
+            if (m_roundTripTracker != null) {
+                m_adminServer.register("/broker-latency", (method, parameters) -> HttpMethod.GET.equals(method) ? m_roundTripTracker.status() : null);
+            }
+        }
+        if (sharedSubscriptions) {
+            m_sharedSubscriptions = new SharedSubscriptions(m_workerGroup, m_mqttBrokerHost, m_mqttBrokerPort, "wsmqttfwd-" + UUID.randomUUID().toString().substring(0, 8), 60);
+            m_sharedSubscriptions.start();
+        }
+        if (m_upstreamPool != null) {
+            m_upstreamPool.start();
+        }
         b.group(m_bossGroup, m_workerGroup)
-                .channel(NioServerSocketChannel.class)
-                .childHandler(new ChannelInitializer<SocketChannel>() {
+                .childHandler(new ChannelInitializer<Channel>() {
                     @Override
-                    public void initChannel(SocketChannel ch) throws Exception
+                    public void initChannel(Channel ch) throws Exception
                     {
-                        ChannelPipeline pipeline = ch.pipeline();
-                        try {
-                            pipeline.addLast("httpEncoder", new HttpResponseEncoder());
-                            pipeline.addLast("httpDecoder", new HttpRequestDecoder());
-                            pipeline.addLast("aggregator", new HttpObjectAggregator(65536));
-                            pipeline.addLast("webSocketHandler", new WebSocketServerProtocolHandler("/mqtt", "mqtt, mqttv3.1, mqttv3.1.1"));
-                            pipeline.addLast("ws2bytebufDecoder", new WebSocketFrameToByteBufDecoder());
-                            pipeline.addLast("bytebuf2wsEncoder", new ByteBufToWebSocketFrameEncoder());
-                            pipeline.addLast("filter", new AuthenticationHandler(m_mqttListerner));
-                            pipeline.addLast("forward", new ForwardToMQTTBrokerHandler(m_mqttBrokerHost, m_mqttBrokerPort));
-                        } catch (Throwable th) {
-                            LOG.error("Severe error during pipeline creation", th);
-                            throw th;
-                        }
+                        initClient(ch);
                     }
-                })
-                .option(ChannelOption.SO_BACKLOG, 128)
-                .option(ChannelOption.SO_REUSEADDR, true)
-                .option(ChannelOption.TCP_NODELAY, true)
-                .childOption(ChannelOption.SO_KEEPALIVE, true);
+                });
+        if (m_localAddress != null) {
+            // the same pipelines over the in-JVM transport, without network
+            b.channel(LocalServerChannel.class);
+        } else {
+            b.channel(NioServerSocketChannel.class)
+                    .option(ChannelOption.SO_BACKLOG, 128)
+                    .option(ChannelOption.SO_REUSEADDR, true)
+                    .option(ChannelOption.TCP_NODELAY, true)
+                    .childOption(ChannelOption.SO_KEEPALIVE, true);
+        }
         try {
             // Bind and start to accept incoming connections.
-            ChannelFuture f = b.bind(host, port);
-            LOG.info("Server bond host: {}, port: {}", host, port);
+            ChannelFuture f;
+            if (m_localAddress != null) {
+                f = b.bind(m_localAddress);
+                LOG.info("Server bond local address: {}", m_localAddress);
+            } else {
+                f = b.bind(host, port);
+                LOG.info("Server bond host: {}, port: {}", host, port);
+            }
             f.sync();
+            m_serverChannel = f.channel();
+            if (m_lagMonitor != null) {
+                m_lagMonitor.start(m_serverChannel, m_clientChannels);
+            }
+
+            if (m_adminServer != null) {
+                m_adminServer.start(m_bossGroup, m_workerGroup, m_adminHost, m_adminPort);
+            }
         } catch (InterruptedException ex) {
             LOG.error(null, ex);
         }
     }
+
+    private void initClient(Channel ch)
+    {
+        m_clientChannels.add(ch);
+        ChannelPipeline pipeline = ch.pipeline();
+        try {
+            pipeline.addLast("httpEncoder", new HttpResponseEncoder());
+            pipeline.addLast("httpDecoder", new HttpRequestDecoder());
+            pipeline.addLast("webSocketHandler", new WebSocketUpgradeHandler("/mqtt", "mqtt, mqttv3.1, mqttv3.1.1", 65536, m_binaryFrameCodec));
+            if (!m_binaryFrameCodec) {
+                pipeline.addLast("ws2bytebufDecoder", new WebSocketFrameToByteBufDecoder());
+            }
+            // the MQTT handlers check and route one packet per message, whatever the client packs in its frames
+            pipeline.addLast("splitter", new PacketSplitter());
+            if (m_coalescingMaxFrameSize > 0) {
+                pipeline.addLast("bytebuf2wsEncoder", new CoalescingFrameEncoder(m_coalescingMaxFrameSize, m_coalescingMaxDelay));
+            } else if (!m_binaryFrameCodec) {
+                pipeline.addLast("bytebuf2wsEncoder", new ByteBufToWebSocketFrameEncoder());
+            }
+            if (m_priorityLanes != null) {
+                pipeline.addLast("priority", m_priorityLanes.newHandler(PriorityLanes.Direction.TO_CLIENT));
+            }
+            if (m_sharedSubscriptions == null && m_topicAliasMaximum > 0) {
+                pipeline.addLast("topicAlias", new TopicAliasHandler(m_topicAliasMaximum));
+            }
+            if (m_sharedSubscriptions == null && m_outboundQueues != null) {
+                // before the aliases are assigned, a dropped PUBLISH must not carry a new alias
+                pipeline.addLast("outboundQueue", m_outboundQueues.newHandler());
+            }
+            if (m_lagMonitor != null) {
+                pipeline.addLast("loadShedding", m_lagMonitor.newConnectHandler());
+            }
+            pipeline.addLast("filter", new AuthenticationHandler(m_mqttListerner, m_heavyHitters, m_sessionRegistry, m_lastValueCache));
+            if (m_sharedSubscriptions == null && m_localKeepAlive != null) {
+                pipeline.addLast("clientKeepAlive", m_localKeepAlive.newClientHandler());
+            }
+            if (m_sharedSubscriptions != null) {
+                pipeline.addLast("shared", new SharedSubscriptionHandler(m_sharedSubscriptions));
+            } else if (m_upstreamPool != null) {
+                // the broker connection is only opened when the client leaves the pool
+                pipeline.addLast("pooled", new PooledPublishHandler(m_upstreamPool, this::newForwarder));
+            } else {
+                pipeline.addLast("forward", newForwarder());
+            }
+        } catch (Throwable th) {
+            LOG.error("Severe error during pipeline creation", th);
+            throw th;
+        }
+    }
+
+    private ForwardToMQTTBrokerHandler newForwarder()
+    {
+        return m_localAddress != null ?
+                new ForwardToMQTTBrokerHandler(m_localBrokerAddress, this::initBackend, m_connectLimiter, m_journal) :
+                new ForwardToMQTTBrokerHandler(m_mqttBrokerHost, m_mqttBrokerPort, this::initBackend, m_connectLimiter, m_journal);
+    }
+
+    private void initBackend(Channel inboundChannel, ChannelPipeline pipeline)
+    {
+        if (m_priorityLanes != null) {
+            pipeline.addLast("priority", m_priorityLanes.newHandler(PriorityLanes.Direction.TO_BROKER));
+        }
+        if (m_roundTripTracker != null) {
+            pipeline.addLast("roundTrip", m_roundTripTracker.newHandler(inboundChannel));
+        }
+        final boolean deliveryFilter = m_mqttListerner != null && m_deliveryFilterCacheSize > 0;
+        if (deliveryFilter || m_coalescingMaxFrameSize > 0 || m_topicAliasMaximum > 0 || m_journal != null || m_heavyHitters != null || m_localKeepAlive != null || m_outboundQueues != null || m_lastValueCache != null || m_upstreamPool != null || m_priorityLanes != null) {
+            // frames are only built from complete packets
+            pipeline.addLast("splitter", new PacketSplitter());
+        }
+        if (deliveryFilter) {
+            pipeline.addLast("deliveryFilter", new DeliveryFilterHandler(inboundChannel, m_mqttListerner, m_deliveryFilterCacheSize, m_deliveryFilterCacheTtl));
+        }
+        if (m_lastValueCache != null) {
+            // after the delivery filter, only the deliveries of allowed topics are cached
+            pipeline.addLast("lastValue", m_lastValueCache.newBackendHandler(inboundChannel));
+        }
+        if (m_localKeepAlive != null) {
+            m_localKeepAlive.initBackend(inboundChannel, pipeline);
+        }
+    }
 }
@@ -0,0 +1,94 @@
+package com.github.sylvek.wsmqttfwd;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Permissions of a session, returned once at CONNECT by {@link AuthenticationHandler.MqttListener#permissions(String)}
+ * and checked locally for each PUBLISH and SUBSCRIBE instead of calling the listener.
+ * The filters are compiled once: the topics without wildcard are looked up in a set, the others matched in turn.
+ * <p>
+ * The permissions are revoked by incrementing the version they were built with, the next packet of the session
+ * then asks the listener for new ones.
+ */
+public class SessionPermissions {
+
+    private final Set<String> publishTopics = new HashSet<>();
+    private final List<String> publishFilters = new ArrayList<>();
+    private final Set<String> subscribeTopics = new HashSet<>();
+    private final List<String> subscribeFilters = new ArrayList<>();
+    private final AtomicLong version;
+    private final long builtAt;
+
+    /**
+     * @param publishFilters the topic filters the client may publish to
+     * @param subscribeFilters the topic filters the client may subscribe to, a subscription must be covered by one of them
+     * @param version revokes the permissions once incremented, shared by any number of sessions, null if never revoked
+     */
+    public SessionPermissions(Collection<String> publishFilters, Collection<String> subscribeFilters, AtomicLong version)
+    {
+        compile(publishFilters, this.publishTopics, this.publishFilters);
+        compile(subscribeFilters, this.subscribeTopics, this.subscribeFilters);
+        this.version = version;
+        this.builtAt = version == null ? 0 : version.get();
+    }
+
+    private static void compile(Collection<String> filters, Set<String> topics, List<String> wildcards)
+    {
+        for (String filter : filters) {
+            if (TopicMatcher.isWildcard(filter)) {
+                wildcards.add(filter);
+            } else {
+                topics.add(filter);
+            }
+        }
+    }
+
+    /**
+     * Return true once the version has been incremented since the permissions were built.
+     */
+    public boolean isRevoked()
+    {
+        return version != null && version.get() != builtAt;
+    }
+
+    public boolean canPublish(String topic)
+    {
+        if (publishTopics.contains(topic)) {
+            return true;
+        }
+        for (String filter : publishFilters) {
+            if (TopicMatcher.matches(filter, topic)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean canSubscribe(List<String> topicFilters)
+    {
+        for (String topicFilter : topicFilters) {
+            if (!canSubscribe(topicFilter)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean canSubscribe(String topicFilter)
+    {
+        if (subscribeTopics.contains(topicFilter)) {
+            return true;
+        }
+        for (String filter : subscribeFilters) {
+            if (TopicMatcher.covers(filter, topicFilter)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,301 @@
+package com.github.sylvek.wsmqttfwd;
+
+import com.github.sylvek.wsmqttfwd.admin.AdminEndpoint;
+import com.github.sylvek.wsmqttfwd.admin.AdminServer;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.util.NetUtil;
+
+/**
+ * Registry of the live sessions, indexed by clientID and by remote address.
+ * The sessions of a clientID or of an address are kept in a small array replaced on each change, so the common case
+ * of a single session per entry costs one array and lookups never lock.
+ * A duplicate clientID is resolved by an atomic update of its entry, so two event loops registering the same clientID
+ * always agree on the winner.
+ */
+public class SessionRegistry implements AdminEndpoint {
+
+    public enum Takeover {
+        // both sessions are left open and indexed under the clientID
+        NONE,
+        // the session already registered is closed, the new one replaces it
+        CLOSE_OLD,
+        // the new session is refused while the registered one is open
+        REJECT_NEW
+    }
+
+    private static final int DEFAULT_LIMIT = 100;
+    private static final Session[] NO_SESSION = new Session[0];
+
+    private final ConcurrentMap<String, Session[]> byClientID = new ConcurrentHashMap<>();
+    private final ConcurrentMap<InetAddress, Session[]> byAddress = new ConcurrentHashMap<>();
+    private final AtomicInteger count = new AtomicInteger();
+    private final Takeover takeover;
+
+    private final AtomicLong takenOver = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public SessionRegistry()
+    {
+        this(Takeover.NONE);
+    }
+
+    public SessionRegistry(Takeover takeover)
+    {
+        this.takeover = takeover;
+    }
+
+    public static class Session {
+
+        private final String clientID;
+        private final Channel channel;
+        private final InetAddress address;
+        private final long connectedAt = System.currentTimeMillis();
+
+        // only updated from the event loop of the session
+        private volatile long packetsIn;
+        private volatile long packetsOut;
+        private volatile long bytesIn;
+        private volatile long bytesOut;
+        private volatile long lastActivity = connectedAt;
+
+        Session(String clientID, Channel channel, InetAddress address)
+        {
+            this.clientID = clientID;
+            this.channel = channel;
+            this.address = address;
+        }
+
+        public String getClientID()
+        {
+            return clientID;
+        }
+
+        public Channel getChannel()
+        {
+            return channel;
+        }
+
+        public InetAddress getAddress()
+        {
+            return address;
+        }
+
+        public long getConnectedAt()
+        {
+            return connectedAt;
+        }
+
+        public long getLastActivity()
+        {
+            return lastActivity;
+        }
+
+        void received(int bytes)
+        {
+            packetsIn++;
+            bytesIn += bytes;
+            lastActivity = System.currentTimeMillis();
+        }
+
+        void sent(int bytes)
+        {
+            packetsOut++;
+            bytesOut += bytes;
+            lastActivity = System.currentTimeMillis();
+        }
+
+        public void kick()
+        {
+            channel.close();
+        }
+
+        String toJson()
+        {
+            return "{\"clientID\":" + AdminServer.quote(clientID) +
+                    ",\"address\":" + AdminServer.quote(address == null ? null : address.getHostAddress()) +
+                    ",\"connectedAt\":" + connectedAt +
+                    ",\"lastActivity\":" + lastActivity +
+                    ",\"packetsIn\":" + packetsIn +
+                    ",\"packetsOut\":" + packetsOut +
+                    ",\"bytesIn\":" + bytesIn +
+                    ",\"bytesOut\":" + bytesOut + "}";
+        }
+    }
+
+    /**
+     * Register the session of an accepted CONNECT, it is removed when its channel is closed.
+     * An open session with the same clientID is handled according to the takeover policy.
+     *
+     * @return null if the session is refused (REJECT_NEW)
+     */
+    public Session register(String clientID, Channel channel)
+    {
+        final SocketAddress remoteAddress = channel.remoteAddress();
+        final InetAddress address = remoteAddress instanceof InetSocketAddress ? ((InetSocketAddress) remoteAddress).getAddress() : null;
+        final Session session = new Session(clientID, channel, address);
+        final List<Session> open = new ArrayList<>(1);
+        final Session[] registered = byClientID.compute(clientID, (id, sessions) -> {
+            open.clear();
+            if (sessions != null) {
+                for (Session current : sessions) {
+                    if (current.channel.isActive()) {
+                        open.add(current);
+                    }
+                }
+            }
+            return open.isEmpty() || takeover != Takeover.REJECT_NEW ? append(sessions, session) : sessions;
+        });
+        if (registered[registered.length - 1] != session) {
+            rejected.incrementAndGet();
+            return null;
+        }
+        count.incrementAndGet();
+        if (!open.isEmpty() && takeover == Takeover.CLOSE_OLD) {
+            // closed outside of the map update, their close listener only removes their own entry
+            takenOver.incrementAndGet();
+            for (Session current : open) {
+                current.kick();
+            }
+        }
+        if (address != null) {
+            byAddress.compute(address, (a, sessions) -> append(sessions, session));
+        }
+        channel.closeFuture().addListener((ChannelFutureListener) future -> unregister(session));
+        return session;
+    }
+
+    private void unregister(Session session)
+    {
+        count.decrementAndGet();
+        byClientID.computeIfPresent(session.clientID, (id, sessions) -> remove(sessions, session));
+        if (session.address != null) {
+            byAddress.computeIfPresent(session.address, (a, sessions) -> remove(sessions, session));
+        }
+    }
+
+    private static Session[] append(Session[] sessions, Session session)
+    {
+        if (sessions == null) {
+            return new Session[]{session};
+        }
+        final Session[] updated = Arrays.copyOf(sessions, sessions.length + 1);
+        updated[sessions.length] = session;
+        return updated;
+    }
+
+    private static Session[] remove(Session[] sessions, Session session)
+    {
+        final List<Session> remaining = new ArrayList<>(Arrays.asList(sessions));
+        remaining.remove(session);
+        return remaining.isEmpty() ? null : remaining.toArray(NO_SESSION);
+    }
+
+    /**
+     * @return the sessions of the clientID, the most recent last (several are open only with the NONE policy)
+     */
+    public List<Session> get(String clientID)
+    {
+        final Session[] sessions = byClientID.get(clientID);
+        return sessions == null ? Collections.emptyList() : Arrays.asList(sessions);
+    }
+
+    public List<Session> get(InetAddress address)
+    {
+        final Session[] sessions = byAddress.get(address);
+        return sessions == null ? Collections.emptyList() : Arrays.asList(sessions);
+    }
+
+    public int count()
+    {
+        return count.get();
+    }
+
+    public int count(InetAddress address)
+    {
+        final Session[] sessions = byAddress.get(address);
+        return sessions == null ? 0 : sessions.length;
+    }
+
+    /**
+     * GET lists the sessions (filtered by clientID or address, at most limit), DELETE closes them.
+     */
+    @Override
+    public String handle(HttpMethod method, Map<String, List<String>> parameters) throws Exception
+    {
+        if (!HttpMethod.GET.equals(method) && !HttpMethod.DELETE.equals(method)) {
+            return null;
+        }
+        final Collection<Session> sessions;
+        if (parameters.containsKey("clientID")) {
+            sessions = get(parameters.get("clientID").get(0));
+        } else if (parameters.containsKey("address")) {
+            sessions = get(address(parameters.get("address").get(0)));
+        } else if (HttpMethod.GET.equals(method)) {
+            sessions = new ArrayList<>(count());
+            for (Session[] entry : byClientID.values()) {
+                sessions.addAll(Arrays.asList(entry));
+            }
+        } else {
+            throw new IllegalArgumentException("clientID or address is required");
+        }
+
+        if (HttpMethod.DELETE.equals(method)) {
+            for (Session session : sessions) {
+                session.kick();
+            }
+            return "{\"kicked\":" + sessions.size() + "}";
+        }
+
+        final List<String> limitParameter = parameters.get("limit");
+        final int limit = limitParameter == null ? DEFAULT_LIMIT : Integer.parseInt(limitParameter.get(0));
+        final StringBuilder sb = new StringBuilder();
+        sb.append("{\"count\":").append(sessions.size()).append(",\"addresses\":").append(byAddress.size())
+                .append(",\"takenOver\":").append(takenOver.get()).append(",\"rejected\":").append(rejected.get())
+                .append(",\"sessions\":[");
+        int i = 0;
+        for (Session session : sessions) {
+            if (i >= limit) {
+                break;
+            }
+            if (i++ > 0) {
+                sb.append(',');
+            }
+            sb.append(session.toJson());
+        }
+        return sb.append("]}").toString();
+    }
+
+    /**
+     * Only literal IP addresses are accepted, a host name would be resolved on the event loop.
+     */
+    private static InetAddress address(String value)
+    {
+        final byte[] bytes = NetUtil.createByteArrayFromIpAddressString(value);
+        if (bytes == null) {
+            throw new IllegalArgumentException("invalid address " + value);
+        }
+        try {
+            return InetAddress.getByAddress(bytes);
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException("invalid address " + value);
+        }
+    }
+}
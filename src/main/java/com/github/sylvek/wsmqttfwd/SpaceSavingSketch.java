@@ -0,0 +1,115 @@
+package com.github.sylvek.wsmqttfwd;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Space-saving sketch keeping the approximate top keys of a weighted stream in a fixed number of counters.
+ * When all the counters are used, the smallest one is given to the new key, its count becomes an over-estimation
+ * bounded by the error of the counter. The counters are kept in a min-heap so each update is O(log capacity).
+ * Not thread safe.
+ */
+class SpaceSavingSketch {
+
+    static class Counter {
+
+        String key;
+        long count;
+        long error;
+        int index;
+    }
+
+    private final Counter[] heap;
+    private final Map<String, Counter> counters;
+    private int size;
+
+    SpaceSavingSketch(int capacity)
+    {
+        this.heap = new Counter[capacity];
+        this.counters = new HashMap<>(capacity * 2);
+    }
+
+    void add(String key, long weight)
+    {
+        Counter counter = counters.get(key);
+        if (counter == null) {
+            if (size < heap.length) {
+                counter = new Counter();
+                counter.key = key;
+                counter.count = weight;
+                counters.put(key, counter);
+                heap[size] = counter;
+                siftUp(size++);
+                return;
+            }
+            // replace the smallest counter
+            counter = heap[0];
+            counters.remove(counter.key);
+            counter.error = counter.count;
+            counter.key = key;
+            counters.put(key, counter);
+        }
+        counter.count += weight;
+        siftDown(counter.index);
+    }
+
+    void clear()
+    {
+        for (int i = 0; i < size; i++) {
+            heap[i] = null;
+        }
+        counters.clear();
+        size = 0;
+    }
+
+    /**
+     * Add the counters of this sketch to the given map, the values are {count, error}.
+     */
+    void addTo(Map<String, long[]> merged)
+    {
+        for (int i = 0; i < size; i++) {
+            final Counter counter = heap[i];
+            final long[] values = merged.computeIfAbsent(counter.key, k -> new long[2]);
+            values[0] += counter.count;
+            values[1] += counter.error;
+        }
+    }
+
+    private void siftUp(int index)
+    {
+        final Counter counter = heap[index];
+        while (index > 0) {
+            final int parent = (index - 1) / 2;
+            if (heap[parent].count <= counter.count) {
+                break;
+            }
+            heap[index] = heap[parent];
+            heap[index].index = index;
+            index = parent;
+        }
+        heap[index] = counter;
+        counter.index = index;
+    }
+
+    private void siftDown(int index)
+    {
+        final Counter counter = heap[index];
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && heap[child + 1].count < heap[child].count) {
+                child++;
+            }
+            if (heap[child].count >= counter.count) {
+                break;
+            }
+            heap[index] = heap[child];
+            heap[index].index = index;
+            index = child;
+        }
+        heap[index] = counter;
+        counter.index = index;
+    }
+}
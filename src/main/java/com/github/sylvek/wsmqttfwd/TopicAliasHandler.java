@@ -0,0 +1,198 @@
+package com.github.sylvek.wsmqttfwd;
+
+import com.github.sylvek.wsmqttfwd.decoder.ConnAckDecoder;
+import com.github.sylvek.wsmqttfwd.decoder.ConnectDecoder;
+import com.github.sylvek.wsmqttfwd.decoder.MqttProperties;
+import com.github.sylvek.wsmqttfwd.decoder.Utils;
+import com.github.sylvek.wsmqttfwd.encoder.PacketEncoder;
+import com.github.sylvek.wsmqttfwd.message.AbstractMessage;
+import com.github.sylvek.wsmqttfwd.message.ConnAckMessage;
+import com.github.sylvek.wsmqttfwd.message.ConnectMessage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.CharsetUtil;
+
+/**
+ * Replaces the repeated topics of the broker to client publications by MQTT 5 topic aliases.
+ * The Topic Alias Maximum of the client is removed from its CONNECT so the broker never assigns aliases by itself,
+ * the forwarder then owns the alias table of the connection and recycles the least recently used alias when it is full.
+ * MQTT 3.1 and 3.1.1 connections are left untouched.
+ */
+public class TopicAliasHandler extends ChannelDuplexHandler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TopicAliasHandler.class);
+
+    // protocol name, version, flags and keep alive
+    private static final int CONNECT_VARIABLE_HEADER_LENGTH = 10;
+
+    private final int maxAliases;
+
+    private boolean connectSeen;
+    private int aliasMaximum;
+    private long maximumPacketSize;
+    private boolean connected;
+    private LinkedHashMap<String, Integer> aliases;
+
+    public TopicAliasHandler(int maxAliases)
+    {
+        this.maxAliases = maxAliases;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception
+    {
+        if (!connectSeen && msg instanceof ByteBuf) {
+            final ByteBuf in = (ByteBuf) msg;
+            if (Utils.packetLength(in) > 0 && ((in.getByte(in.readerIndex()) & 0xF0) >> 4) == AbstractMessage.CONNECT) {
+                connectSeen = true;
+                in.markReaderIndex();
+                final ConnectMessage connectMessage = new ConnectDecoder().decode(ctx, in);
+                in.resetReaderIndex();
+                if (connectMessage != null && connectMessage.getProtocolVersion() == Utils.VERSION_5) {
+                    aliasMaximum = Math.min(connectMessage.getTopicAliasMaximum(), maxAliases);
+                    maximumPacketSize = connectMessage.getMaximumPacketSize();
+                    if (connectMessage.getTopicAliasMaximum() > 0) {
+                        msg = stripTopicAliasMaximum(ctx, in);
+                    }
+                }
+            }
+        }
+        super.channelRead(ctx, msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception
+    {
+        if (aliasMaximum > 0 && msg instanceof ByteBuf) {
+            final ByteBuf in = (ByteBuf) msg;
+            final byte messageType = (byte) ((in.getByte(in.readerIndex()) & 0xF0) >> 4);
+            if (messageType == AbstractMessage.PUBLISH && connected) {
+                msg = aliasTopic(ctx, in);
+            } else if (messageType == AbstractMessage.CONNACK) {
+                in.markReaderIndex();
+                final ConnAckMessage connAckMessage = new ConnAckDecoder().decode(ctx, in);
+                in.resetReaderIndex();
+                // the reason codes of MQTT 5 from 0x80 are failures
+                connected = connAckMessage != null && connAckMessage.getReturnCode() >= 0;
+            }
+        }
+        super.write(ctx, msg, promise);
+    }
+
+    /**
+     * Rewrite the CONNECT without its Topic Alias Maximum property.
+     */
+    private ByteBuf stripTopicAliasMaximum(ChannelHandlerContext ctx, ByteBuf in)
+    {
+        final int start = in.readerIndex();
+        final int end = start + Utils.packetLength(in);
+        final int propertiesIndex = Utils.variableHeaderIndex(in) + CONNECT_VARIABLE_HEADER_LENGTH;
+        final int propertiesLengthSize = MqttProperties.variableByteIntegerLength(in, propertiesIndex);
+        final int propertiesStart = propertiesIndex + propertiesLengthSize;
+        final int propertiesEnd = propertiesStart + MqttProperties.getVariableByteInteger(in, propertiesIndex);
+
+        int index = propertiesStart;
+        while (index < propertiesEnd && in.getUnsignedByte(index) != MqttProperties.TOPIC_ALIAS_MAXIMUM) {
+            final int id = in.getUnsignedByte(index);
+            index += 1 + MqttProperties.valueLength(in, id, index + 1);
+        }
+        if (index >= propertiesEnd) {
+            return in;
+        }
+
+        final int propertiesLength = propertiesEnd - propertiesStart - 3;
+        final int remainingLength = CONNECT_VARIABLE_HEADER_LENGTH + Utils.numBytesToEncode(propertiesLength) + end - propertiesStart - 3;
+        final ByteBuf out = ctx.alloc().buffer(1 + Utils.numBytesToEncode(remainingLength) + remainingLength);
+        out.writeByte(in.getByte(start));
+        PacketEncoder.writeRemainingLength(out, remainingLength);
+        out.writeBytes(in, propertiesIndex - CONNECT_VARIABLE_HEADER_LENGTH, CONNECT_VARIABLE_HEADER_LENGTH);
+        PacketEncoder.writeRemainingLength(out, propertiesLength);
+        out.writeBytes(in, propertiesStart, index - propertiesStart);
+        out.writeBytes(in, index + 3, end - index - 3);
+        in.release();
+        return out;
+    }
+
+    /**
+     * Rewrite the PUBLISH with a topic alias, the topic is only sent the first time its alias is used.
+     */
+    private ByteBuf aliasTopic(ChannelHandlerContext ctx, ByteBuf in)
+    {
+        final int start = in.readerIndex();
+        final int end = start + Utils.packetLength(in);
+        final int topicIndex = Utils.variableHeaderIndex(in);
+        final int topicLength = in.getUnsignedShort(topicIndex);
+        if (topicLength == 0) {
+            return in;
+        }
+        final boolean withMessageID = (in.getByte(start) & 0x06) != 0;
+        final int propertiesIndex = topicIndex + 2 + topicLength + (withMessageID ? 2 : 0);
+        final int propertiesLengthSize = MqttProperties.variableByteIntegerLength(in, propertiesIndex);
+        final int propertiesStart = propertiesIndex + propertiesLengthSize;
+        final int propertiesLength = MqttProperties.getVariableByteInteger(in, propertiesIndex);
+        for (int index = propertiesStart; index < propertiesStart + propertiesLength; ) {
+            final int id = in.getUnsignedByte(index);
+            if (id == MqttProperties.TOPIC_ALIAS) {
+                return in;
+            }
+            index += 1 + MqttProperties.valueLength(in, id, index + 1);
+        }
+
+        final String topic = in.toString(topicIndex + 2, topicLength, CharsetUtil.UTF_8);
+        if (aliases == null) {
+            aliases = new LinkedHashMap<>(aliasMaximum, 0.75f, true);
+        }
+        Integer alias = aliases.get(topic);
+        final boolean known = alias != null;
+        final int newTopicLength = known ? 0 : topicLength;
+        final int remainingLength = end - topicIndex - topicLength + newTopicLength + 3
+                + (Utils.numBytesToEncode(propertiesLength + 3) - propertiesLengthSize);
+        if (maximumPacketSize > 0 && 1 + Utils.numBytesToEncode(remainingLength) + remainingLength > maximumPacketSize) {
+            return in;
+        }
+        if (!known) {
+            alias = assign(topic);
+        }
+
+        final ByteBuf out = ctx.alloc().buffer(1 + Utils.numBytesToEncode(remainingLength) + remainingLength);
+        out.writeByte(in.getByte(start));
+        PacketEncoder.writeRemainingLength(out, remainingLength);
+        out.writeShort(newTopicLength);
+        out.writeBytes(in, topicIndex + 2, newTopicLength);
+        if (withMessageID) {
+            out.writeShort(in.getUnsignedShort(topicIndex + 2 + topicLength));
+        }
+        PacketEncoder.writeRemainingLength(out, propertiesLength + 3);
+        out.writeByte(MqttProperties.TOPIC_ALIAS);
+        out.writeShort(alias);
+        out.writeBytes(in, propertiesStart, end - propertiesStart);
+        in.release();
+        return out;
+    }
+
+    private Integer assign(String topic)
+    {
+        Integer alias;
+        if (aliases.size() < aliasMaximum) {
+            alias = aliases.size() + 1;
+        } else {
+            // recycle the alias of the least recently used topic
+            final Iterator<Map.Entry<String, Integer>> eldest = aliases.entrySet().iterator();
+            alias = eldest.next().getValue();
+            eldest.remove();
+            LOG.debug("topic alias {} reassigned to {}", alias, topic);
+        }
+        aliases.put(topic, alias);
+        return alias;
+    }
+}
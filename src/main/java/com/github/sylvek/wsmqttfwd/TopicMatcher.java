@@ -0,0 +1,77 @@
+package com.github.sylvek.wsmqttfwd;
+
+/**
+ * MQTT topic filter matching (see MQTT 3.1.1 section 4.7).
+ */
+public class TopicMatcher {
+
+    public static boolean isWildcard(String topicFilter)
+    {
+        return topicFilter.indexOf('+') >= 0 || topicFilter.indexOf('#') >= 0;
+    }
+
+    /**
+     * Return true if the topic name is matched by the topic filter.
+     * Topics starting with '$' are not matched by a filter starting with a wildcard [MQTT-4.7.2-1].
+     */
+    public static boolean matches(String topicFilter, String topic)
+    {
+        if (topic.startsWith("$") && !topicFilter.isEmpty() && (topicFilter.charAt(0) == '+' || topicFilter.charAt(0) == '#')) {
+            return false;
+        }
+
+        int f = 0;
+        int t = 0;
+        final int filterLength = topicFilter.length();
+        final int topicLength = topic.length();
+        while (f < filterLength) {
+            final char c = topicFilter.charAt(f);
+            if (c == '#') {
+                // multi-level wildcard, matches the parent level too
+                return true;
+            }
+            if (c == '+') {
+                while (t < topicLength && topic.charAt(t) != '/') {
+                    t++;
+                }
+                f++;
+                continue;
+            }
+            if (t >= topicLength) {
+                // "a/#" matches "a"
+                return c == '/' && f + 2 == filterLength && topicFilter.charAt(f + 1) == '#';
+            }
+            if (c != topic.charAt(t)) {
+                return false;
+            }
+            f++;
+            t++;
+        }
+        return t == topicLength;
+    }
+
+    /**
+     * Return true if every topic matched by the requested filter is matched by the allowed filter.
+     */
+    public static boolean covers(String allowedFilter, String requestedFilter)
+    {
+        if (requestedFilter.startsWith("$") && !allowedFilter.isEmpty() && (allowedFilter.charAt(0) == '+' || allowedFilter.charAt(0) == '#')) {
+            return false;
+        }
+
+        final String[] allowed = allowedFilter.split("/", -1);
+        final String[] requested = requestedFilter.split("/", -1);
+        for (int i = 0; i < allowed.length; i++) {
+            if (allowed[i].equals("#")) {
+                return true;
+            }
+            if (i >= requested.length) {
+                return false;
+            }
+            if (allowed[i].equals("+") ? requested[i].equals("#") : !allowed[i].equals(requested[i])) {
+                return false;
+            }
+        }
+        return allowed.length == requested.length;
+    }
+}
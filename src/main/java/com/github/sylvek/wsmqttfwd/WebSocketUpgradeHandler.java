@@ -0,0 +1,130 @@
+package com.github.sylvek.wsmqttfwd;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.handler.codec.http.websocketx.WebSocketServerHandshaker;
+import io.netty.handler.codec.http.websocketx.WebSocketServerHandshakerFactory;
+import io.netty.handler.codec.http.websocketx.WebSocketVersion;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * Validates the WebSocket upgrade request and answers the handshake without aggregating the HTTP request.
+ * The handshake replaces the HTTP codec by the WebSocket frame codec, then this handler removes itself
+ * so nothing but the frame codec stays in front of the MQTT handlers.
+ * With the binary frame codec, only RFC 6455 clients are accepted and the Netty frame codec is replaced by
+ * {@link BinaryFrameDecoder} and {@link BinaryFrameEncoder}.
+ */
+public class WebSocketUpgradeHandler extends ChannelInboundHandlerAdapter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WebSocketUpgradeHandler.class);
+
+    private final String path;
+    private final String subprotocols;
+    private final int maxFramePayloadLength;
+    private final boolean binaryFrameCodec;
+
+    private boolean upgraded;
+
+    public WebSocketUpgradeHandler(String path, String subprotocols, int maxFramePayloadLength)
+    {
+        this(path, subprotocols, maxFramePayloadLength, false);
+    }
+
+    public WebSocketUpgradeHandler(String path, String subprotocols, int maxFramePayloadLength, boolean binaryFrameCodec)
+    {
+        this.path = path;
+        this.subprotocols = subprotocols;
+        this.maxFramePayloadLength = maxFramePayloadLength;
+        this.binaryFrameCodec = binaryFrameCodec;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception
+    {
+        try {
+            if (msg instanceof HttpRequest && !upgraded) {
+                upgrade(ctx, (HttpRequest) msg);
+            }
+            if (msg instanceof LastHttpContent && upgraded) {
+                ctx.pipeline().remove(this);
+            }
+        } finally {
+            // the upgrade request has no body, any content is dropped
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    private void upgrade(ChannelHandlerContext ctx, HttpRequest request)
+    {
+        if (!HttpMethod.GET.equals(request.getMethod())) {
+            sendError(ctx, HttpResponseStatus.METHOD_NOT_ALLOWED);
+            return;
+        }
+        if (!path.equals(new QueryStringDecoder(request.getUri()).path())) {
+            sendError(ctx, HttpResponseStatus.NOT_FOUND);
+            return;
+        }
+        final HttpHeaders headers = request.headers();
+        if (!HttpHeaders.Values.WEBSOCKET.equalsIgnoreCase(headers.get(HttpHeaders.Names.UPGRADE))) {
+            sendError(ctx, HttpResponseStatus.BAD_REQUEST);
+            return;
+        }
+        final String requested = headers.get(HttpHeaders.Names.SEC_WEBSOCKET_PROTOCOL);
+        if (requested != null && !isSupported(requested)) {
+            LOG.debug("unsupported subprotocols {}", requested);
+            sendError(ctx, HttpResponseStatus.BAD_REQUEST);
+            return;
+        }
+
+        final String location = "ws://" + headers.get(HttpHeaders.Names.HOST) + path;
+        final WebSocketServerHandshakerFactory factory = new WebSocketServerHandshakerFactory(location, subprotocols, false, maxFramePayloadLength);
+        final WebSocketServerHandshaker handshaker = factory.newHandshaker(request);
+        if (handshaker == null || (binaryFrameCodec && handshaker.version() != WebSocketVersion.V13)) {
+            WebSocketServerHandshakerFactory.sendUnsupportedVersionResponse(ctx.channel());
+            ctx.channel().close();
+            return;
+        }
+
+        final FullHttpRequest fullRequest = new DefaultFullHttpRequest(request.getProtocolVersion(), request.getMethod(), request.getUri(), Unpooled.EMPTY_BUFFER);
+        fullRequest.headers().set(headers);
+        handshaker.handshake(ctx.channel(), fullRequest).addListener(ChannelFutureListener.CLOSE_ON_FAILURE);
+        if (binaryFrameCodec) {
+            // the handshake installed the frame codec synchronously, the response is still to be encoded by the HTTP encoder
+            ctx.pipeline().replace("wsdecoder", "wsdecoder", new BinaryFrameDecoder(maxFramePayloadLength));
+            ctx.pipeline().replace("wsencoder", "wsencoder", new BinaryFrameEncoder());
+        }
+        upgraded = true;
+    }
+
+    private boolean isSupported(String requested)
+    {
+        for (String subprotocol : requested.split(",")) {
+            for (String supported : subprotocols.split(",")) {
+                if (subprotocol.trim().equals(supported.trim())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static void sendError(ChannelHandlerContext ctx, HttpResponseStatus status)
+    {
+        ctx.channel().writeAndFlush(new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status)).addListener(ChannelFutureListener.CLOSE);
+    }
+}
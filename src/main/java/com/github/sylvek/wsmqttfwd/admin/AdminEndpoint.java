@@ -0,0 +1,14 @@
+package com.github.sylvek.wsmqttfwd.admin;
+
+import java.util.List;
+import java.util.Map;
+
+import io.netty.handler.codec.http.HttpMethod;
+
+public interface AdminEndpoint {
+
+    /**
+     * @return the JSON response or null if the method is not supported by this endpoint
+     */
+    String handle(HttpMethod method, Map<String, List<String>> parameters) throws Exception;
+}
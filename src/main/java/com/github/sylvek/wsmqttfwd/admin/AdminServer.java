@@ -0,0 +1,138 @@
+package com.github.sylvek.wsmqttfwd.admin;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.util.CharsetUtil;
+
+/**
+ * Small HTTP server exposing the operational endpoints of the forwarder, it should only be bound on a private interface.
+ */
+public class AdminServer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AdminServer.class);
+
+    private final Map<String, AdminEndpoint> endpoints = new ConcurrentHashMap<>();
+
+    private Channel channel;
+
+    public void register(String path, AdminEndpoint endpoint)
+    {
+        endpoints.put(path, endpoint);
+    }
+
+    public void start(EventLoopGroup bossGroup, EventLoopGroup workerGroup, String host, int port) throws InterruptedException
+    {
+        ServerBootstrap b = new ServerBootstrap();
+        b.group(bossGroup, workerGroup)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    public void initChannel(SocketChannel ch) throws Exception
+                    {
+                        ChannelPipeline pipeline = ch.pipeline();
+                        pipeline.addLast("httpCodec", new HttpServerCodec());
+                        pipeline.addLast("aggregator", new HttpObjectAggregator(4096));
+                        pipeline.addLast("admin", new AdminHandler());
+                    }
+                });
+        channel = b.bind(host, port).sync().channel();
+        LOG.info("Admin server bond host: {}, port: {}", host, port);
+    }
+
+    public void stop()
+    {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    /**
+     * Quote and escape a string value for the JSON responses, null gives null.
+     */
+    public static String quote(String value)
+    {
+        if (value == null) {
+            return "null";
+        }
+        final StringBuilder sb = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    private class AdminHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) throws Exception
+        {
+            final QueryStringDecoder query = new QueryStringDecoder(request.getUri());
+            final AdminEndpoint endpoint = endpoints.get(query.path());
+            if (endpoint == null) {
+                respond(ctx, HttpResponseStatus.NOT_FOUND, "{\"error\":\"not found\"}");
+                return;
+            }
+
+            try {
+                final String body = endpoint.handle(request.getMethod(), query.parameters());
+                if (body == null) {
+                    respond(ctx, HttpResponseStatus.METHOD_NOT_ALLOWED, "{\"error\":\"method not allowed\"}");
+                } else {
+                    respond(ctx, HttpResponseStatus.OK, body);
+                }
+            } catch (IllegalArgumentException e) {
+                respond(ctx, HttpResponseStatus.BAD_REQUEST, "{\"error\":" + quote(e.getMessage()) + "}");
+            } catch (IllegalStateException e) {
+                respond(ctx, HttpResponseStatus.CONFLICT, "{\"error\":" + quote(e.getMessage()) + "}");
+            }
+        }
+
+        private void respond(ChannelHandlerContext ctx, HttpResponseStatus status, String body)
+        {
+            final ByteBuf content = Unpooled.copiedBuffer(body, CharsetUtil.UTF_8);
+            final FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, content);
+            response.headers().set(HttpHeaders.Names.CONTENT_TYPE, "application/json");
+            response.headers().set(HttpHeaders.Names.CONTENT_LENGTH, content.readableBytes());
+            ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception
+        {
+            LOG.error("admin request failure", cause);
+            ctx.close();
+        }
+    }
+}
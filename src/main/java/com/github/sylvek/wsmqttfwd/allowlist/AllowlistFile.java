@@ -0,0 +1,219 @@
+package com.github.sylvek.wsmqttfwd.allowlist;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * Immutable file of clientIDs mapped in memory, nothing but the mapping is kept on the heap.
+ * <pre>
+ * int magic, int version, int count, int bloomWords, int bloomHashes
+ * long[bloomWords] Bloom filter of the clientIDs
+ * int[count] offsets of the entries, sorted by clientID
+ * entries: unsigned short length, UTF-8 bytes
+ * </pre>
+ * The clientIDs are sorted by their UTF-8 bytes compared as unsigned values, a lookup is a Bloom filter test
+ * followed by a binary search comparing the bytes in place.
+ */
+class AllowlistFile {
+
+    private static final int MAGIC = 0x57534944;
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 20;
+
+    // 10 bits and 7 hashes per clientID, about 1% of false positives
+    private static final int BLOOM_BITS_PER_ENTRY = 10;
+    private static final int BLOOM_HASHES = 7;
+
+    private final MappedByteBuffer buffer;
+    private final int count;
+    private final int bloomWords;
+    private final int bloomHashes;
+    private final int offsetsIndex;
+    final long lastModified;
+
+    AllowlistFile(File file) throws IOException
+    {
+        this.lastModified = file.lastModified();
+        // the mapping stays valid once the file is closed, and once the file is replaced
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        }
+        if (buffer.capacity() < HEADER_LENGTH || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("not a clientID allowlist: " + file);
+        }
+        this.count = buffer.getInt(8);
+        this.bloomWords = buffer.getInt(12);
+        this.bloomHashes = buffer.getInt(16);
+        if (count < 0 || bloomWords <= 0 || HEADER_LENGTH + bloomWords * 8L + count * 4L > buffer.capacity()) {
+            throw new IOException("truncated clientID allowlist: " + file);
+        }
+        this.offsetsIndex = HEADER_LENGTH + bloomWords * 8;
+        // the lookups run on the event loops, a corrupt entry is refused here rather than failing a CONNECT
+        final int entriesIndex = offsetsIndex + count * 4;
+        for (int i = 0; i < count; i++) {
+            final int entryIndex = buffer.getInt(offsetsIndex + i * 4);
+            if (entryIndex < entriesIndex || entryIndex > buffer.capacity() - 2
+                    || entryIndex + 2 + (buffer.getShort(entryIndex) & 0xFFFF) > buffer.capacity()) {
+                throw new IOException("corrupt entry " + i + " in the clientID allowlist: " + file);
+            }
+        }
+    }
+
+    int count()
+    {
+        return count;
+    }
+
+    /**
+     * @param clientID holds the UTF-8 bytes of the clientID, length bytes from index
+     */
+    boolean mightContain(ByteBuf clientID, int index, int length)
+    {
+        final long hash = hash(clientID, index, length);
+        final int h1 = (int) hash;
+        final int h2 = (int) (hash >>> 32);
+        final long bits = bloomWords * 64L;
+        for (int i = 0; i < bloomHashes; i++) {
+            final long bit = ((h1 + i * h2) & 0x7FFFFFFFL) % bits;
+            if ((buffer.getLong(HEADER_LENGTH + (int) (bit >>> 6) * 8) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    boolean contains(ByteBuf clientID, int index, int length)
+    {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            final int comparison = compare(buffer.getInt(offsetsIndex + middle * 4), clientID, index, length);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int compare(int entryIndex, ByteBuf clientID, int index, int length)
+    {
+        final int entryLength = buffer.getShort(entryIndex) & 0xFFFF;
+        final int common = Math.min(entryLength, length);
+        for (int i = 0; i < common; i++) {
+            final int comparison = (buffer.get(entryIndex + 2 + i) & 0xFF) - clientID.getUnsignedByte(index + i);
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+        return entryLength - length;
+    }
+
+    /**
+     * 64 bits FNV-1a followed by the murmur3 finalizer, the two halves are the hashes of the Bloom filter.
+     */
+    private static long hash(ByteBuf bytes, int index, int length)
+    {
+        long h = 0xcbf29ce484222325L;
+        for (int i = index; i < index + length; i++) {
+            h ^= bytes.getUnsignedByte(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static int compare(byte[] a, byte[] b)
+    {
+        final int common = Math.min(a.length, b.length);
+        for (int i = 0; i < common; i++) {
+            final int comparison = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    /**
+     * Write the allowlist of the given clientIDs, the file is replaced atomically.
+     */
+    static void write(Iterable<String> clientIDs, File file) throws IOException
+    {
+        final List<byte[]> entries = new ArrayList<>();
+        for (String clientID : clientIDs) {
+            final byte[] bytes = clientID.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > 0xFFFF) {
+                throw new IllegalArgumentException("clientID too long: " + clientID);
+            }
+            entries.add(bytes);
+        }
+        entries.sort(AllowlistFile::compare);
+        final List<byte[]> sorted = new ArrayList<>(entries.size());
+        for (byte[] entry : entries) {
+            if (sorted.isEmpty() || compare(sorted.get(sorted.size() - 1), entry) != 0) {
+                sorted.add(entry);
+            }
+        }
+
+        final int bloomWords = Math.max(1, (int) ((sorted.size() * (long) BLOOM_BITS_PER_ENTRY + 63) / 64));
+        final long[] bloom = new long[bloomWords];
+        final long bits = bloomWords * 64L;
+        for (byte[] entry : sorted) {
+            final long hash = hash(Unpooled.wrappedBuffer(entry), 0, entry.length);
+            final int h1 = (int) hash;
+            final int h2 = (int) (hash >>> 32);
+            for (int i = 0; i < BLOOM_HASHES; i++) {
+                final long bit = ((h1 + i * h2) & 0x7FFFFFFFL) % bits;
+                bloom[(int) (bit >>> 6)] |= 1L << bit;
+            }
+        }
+
+        final File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(sorted.size());
+            out.writeInt(bloomWords);
+            out.writeInt(BLOOM_HASHES);
+            for (long word : bloom) {
+                out.writeLong(word);
+            }
+            long offset = HEADER_LENGTH + bloomWords * 8L + sorted.size() * 4L;
+            for (byte[] entry : sorted) {
+                if (offset > Integer.MAX_VALUE) {
+                    throw new IOException("allowlist larger than 2 GB");
+                }
+                out.writeInt((int) offset);
+                offset += 2 + entry.length;
+            }
+            for (byte[] entry : sorted) {
+                out.writeShort(entry.length);
+                out.write(entry);
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,196 @@
+package com.github.sylvek.wsmqttfwd.allowlist;
+
+import com.github.sylvek.wsmqttfwd.AuthenticationHandler;
+import com.github.sylvek.wsmqttfwd.SessionPermissions;
+import com.github.sylvek.wsmqttfwd.admin.AdminServer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * MqttListener accepting only the clientIDs of an allowlist file mapped in memory (see {@link AllowlistFile}),
+ * so millions of clientIDs cost no heap. The file is checked for a new version at most once per reload interval
+ * and swapped atomically, the lookups in progress keep using the previous mapping.
+ * The credentials, topics and pings are delegated to another listener, if any.
+ *
+ * To build the file from a text file holding one clientID per line:
+ * <pre>
+ * java -cp wsmqttfwd.jar com.github.sylvek.wsmqttfwd.allowlist.ClientIDAllowlist clientids.txt clientids.bin
+ * </pre>
+ */
+public class ClientIDAllowlist implements AuthenticationHandler.MqttListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ClientIDAllowlist.class);
+
+    private final File file;
+    private final long reloadInterval;
+    private final AuthenticationHandler.MqttListener delegate;
+
+    private volatile AllowlistFile current;
+    private volatile long nextCheck;
+
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong bloomRejected = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong reloads = new AtomicLong();
+
+    /**
+     * @param reloadInterval minimum delay between two checks of the file modification time, in milliseconds
+     * @param delegate checks the topics and receives the pings, null to accept all the topics
+     */
+    public ClientIDAllowlist(File file, long reloadInterval, AuthenticationHandler.MqttListener delegate) throws IOException
+    {
+        this.file = file;
+        this.reloadInterval = reloadInterval;
+        this.delegate = delegate;
+        this.current = new AllowlistFile(file);
+        this.nextCheck = System.currentTimeMillis() + reloadInterval;
+    }
+
+    @Override
+    public boolean checkClientID(String clientID)
+    {
+        final byte[] bytes = clientID.getBytes(StandardCharsets.UTF_8);
+        return isAllowed(Unpooled.wrappedBuffer(bytes), 0, bytes.length) && (delegate == null || delegate.checkClientID(clientID));
+    }
+
+    /**
+     * Called by the AuthenticationHandler, the clientID is looked up over the bytes of the CONNECT packet.
+     */
+    @Override
+    public boolean checkClientID(String clientID, ByteBuf connect, int index, int length)
+    {
+        return isAllowed(connect, index, length) && (delegate == null || delegate.checkClientID(clientID, connect, index, length));
+    }
+
+    private boolean isAllowed(ByteBuf clientID, int index, int length)
+    {
+        reloadIfModified();
+        lookups.incrementAndGet();
+        final AllowlistFile allowlist = current;
+        if (!allowlist.mightContain(clientID, index, length)) {
+            bloomRejected.incrementAndGet();
+            return false;
+        }
+        if (!allowlist.contains(clientID, index, length)) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean checkCredentials(String clientID, String userName, byte[] password)
+    {
+        return delegate == null || delegate.checkCredentials(clientID, userName, password);
+    }
+
+    /**
+     * The allowlist only knows the clientIDs, the clients are authenticated by the delegate.
+     */
+    @Override
+    public boolean authenticatesClients()
+    {
+        return delegate != null && delegate.authenticatesClients();
+    }
+
+    @Override
+    public boolean checkSubScribeTopic(String clientID, List<String> topic)
+    {
+        return delegate == null || delegate.checkSubScribeTopic(clientID, topic);
+    }
+
+    @Override
+    public boolean checkPublishTopic(String clientID, String topic)
+    {
+        return delegate == null || delegate.checkPublishTopic(clientID, topic);
+    }
+
+    @Override
+    public boolean checkReadTopic(String clientID, String topic)
+    {
+        return delegate == null || delegate.checkReadTopic(clientID, topic);
+    }
+
+    @Override
+    public SessionPermissions permissions(String clientID)
+    {
+        return delegate == null ? null : delegate.permissions(clientID);
+    }
+
+    @Override
+    public void onPing(String clientID)
+    {
+        if (delegate != null) {
+            delegate.onPing(clientID);
+        }
+    }
+
+    private void reloadIfModified()
+    {
+        final long now = System.currentTimeMillis();
+        if (now < nextCheck) {
+            return;
+        }
+        synchronized (this) {
+            if (now < nextCheck) {
+                return;
+            }
+            nextCheck = now + reloadInterval;
+            if (file.lastModified() == current.lastModified) {
+                return;
+            }
+            try {
+                current = new AllowlistFile(file);
+                reloads.incrementAndGet();
+                LOG.info("clientID allowlist {} reloaded, {} clientIDs", file, current.count());
+            } catch (IOException e) {
+                LOG.error("unable to reload the clientID allowlist " + file + ", keeping the previous one", e);
+            }
+        }
+    }
+
+    public String status()
+    {
+        return "{\"file\":" + AdminServer.quote(file.getName()) +
+                ",\"count\":" + current.count() +
+                ",\"lastModified\":" + current.lastModified +
+                ",\"reloads\":" + reloads.get() +
+                ",\"lookups\":" + lookups.get() +
+                ",\"bloomRejected\":" + bloomRejected.get() +
+                ",\"rejected\":" + rejected.get() + "}";
+    }
+
+    /**
+     * Write the allowlist of the given clientIDs, the file is replaced atomically so it can be reloaded while in use.
+     */
+    public static void write(Iterable<String> clientIDs, File file) throws IOException
+    {
+        AllowlistFile.write(clientIDs, file);
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length != 2) {
+            System.out.println("java -cp wsmqttfwd.jar " + ClientIDAllowlist.class.getName() + " clientids.txt clientids.bin");
+            System.exit(1);
+        }
+
+        try (Stream<String> lines = Files.lines(Paths.get(args[0]), StandardCharsets.UTF_8)) {
+            write(lines.map(String::trim).filter(line -> !line.isEmpty()).collect(Collectors.toList()), new File(args[1]));
+        }
+    }
+}
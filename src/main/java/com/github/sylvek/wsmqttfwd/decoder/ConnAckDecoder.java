@@ -0,0 +1,67 @@
+package com.github.sylvek.wsmqttfwd.decoder;
+
+import com.github.sylvek.wsmqttfwd.message.ConnAckMessage;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.util.AttributeMap;
+
+/**
+ * Decodes the CONNACK packets, the MQTT 5 properties are read when the CONNECT decoded
+ * with the same context was a MQTT 5 one.
+ */
+public class ConnAckDecoder extends DemuxDecoder<ConnAckMessage> {
+
+    @Override
+    public ConnAckMessage decode(AttributeMap ctx, ByteBuf in) throws Exception
+    {
+        in.resetReaderIndex();
+        //Common decoding part
+        ConnAckMessage message = new ConnAckMessage();
+        if (!decodeCommonHeader(message, 0x00, in)) {
+            in.resetReaderIndex();
+            return null;
+        }
+        if (message.getRemainingLength() < 2) {
+            throw new CorruptedFrameException("Received a CONNACK with a remaining length of " + message.getRemainingLength());
+        }
+        if (in.readableBytes() < message.getRemainingLength()) {
+            in.resetReaderIndex();
+            return null;
+        }
+
+        message.setSessionPresent((in.readByte() & 0x01) != 0);
+        message.setReturnCode(in.readByte());
+
+        //MQTT 5 properties
+        Integer version = ctx.attr(ConnectDecoder.PROTOCOL_VERSION).get();
+        if (version != null && version == Utils.VERSION_5 && message.getRemainingLength() > 2) {
+            decodeProperties(message, in);
+        }
+
+        return message;
+    }
+
+    private void decodeProperties(ConnAckMessage message, ByteBuf in)
+    {
+        int propertiesLength = Utils.decodeRemainingLength(in);
+        int end = in.readerIndex() + propertiesLength;
+        while (in.readerIndex() < end) {
+            int id = in.readUnsignedByte();
+            switch (id) {
+                case MqttProperties.TOPIC_ALIAS_MAXIMUM:
+                    message.setTopicAliasMaximum(in.readUnsignedShort());
+                    break;
+                case MqttProperties.RECEIVE_MAXIMUM:
+                    message.setReceiveMaximum(in.readUnsignedShort());
+                    break;
+                case MqttProperties.MAXIMUM_PACKET_SIZE:
+                    message.setMaximumPacketSize(in.readUnsignedInt());
+                    break;
+                default:
+                    in.skipBytes(MqttProperties.valueLength(in, id, in.readerIndex()));
+                    break;
+            }
+        }
+    }
+}
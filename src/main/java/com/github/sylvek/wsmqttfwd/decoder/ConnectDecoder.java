@@ -34,7 +34,7 @@ public class ConnectDecoder extends DemuxDecoder<ConnectMessage> {
 
     static final AttributeKey<Boolean> CONNECT_STATUS = AttributeKey.valueOf("connected");
 
-    //3 = 3.1, 4 = 3.1.1
+    //3 = 3.1, 4 = 3.1.1, 5 = 5
     static final AttributeKey<Integer> PROTOCOL_VERSION = AttributeKey.valueOf("version");
 
     @Override
@@ -96,9 +96,12 @@ public class ConnectDecoder extends DemuxDecoder<ConnectMessage> {
                 throw new CorruptedFrameException("Invalid protoName size: " + protocolNameLen);
         }
 
-        //ProtocolVersion 1 byte (value 0x03 for 3.1, 0x04 for 3.1.1)
+        //ProtocolVersion 1 byte (value 0x03 for 3.1, 0x04 for 3.1.1, 0x05 for 5)
         message.setProtocolVersion(in.readByte());
-        if (message.getProtocolVersion() == Utils.VERSION_3_1_1) {
+        if (message.getProtocolVersion() == Utils.VERSION_5) {
+            versionAttr.set((int) Utils.VERSION_5);
+        }
+        if (message.getProtocolVersion() >= Utils.VERSION_3_1_1) {
             //if 3.1.1, check the flags (dup, retain and qos == 0)
             if (message.isDupFlag() || message.isRetainFlag() || message.getQos() != AbstractMessage.QOSType.MOST_ONE) {
                 throw new CorruptedFrameException("Received a CONNECT with fixed header flags != 0");
@@ -117,7 +120,7 @@ public class ConnectDecoder extends DemuxDecoder<ConnectMessage> {
 
         //Connection flag
         byte connFlags = in.readByte();
-        if (message.getProtocolVersion() == Utils.VERSION_3_1_1) {
+        if (message.getProtocolVersion() >= Utils.VERSION_3_1_1) {
             if ((connFlags & 0x01) != 0) { //bit(0) of connection flags is != 0
                 throw new CorruptedFrameException("Received a CONNECT with connectionFlags[0(bit)] != 0");
             }
@@ -150,21 +153,31 @@ public class ConnectDecoder extends DemuxDecoder<ConnectMessage> {
         int keepAlive = in.readUnsignedShort();
         message.setKeepAlive(keepAlive);
 
+        //MQTT 5 properties
+        if (message.getProtocolVersion() == Utils.VERSION_5) {
+            decodeProperties(message, in);
+        }
+
         if ((remainingLength == 12 && message.getProtocolVersion() == Utils.VERSION_3_1) ||
                 (remainingLength == 10 && message.getProtocolVersion() == Utils.VERSION_3_1_1)) {
             return message;
         }
 
         //Decode the ClientID
+        final int clientIDIndex = in.readerIndex() + 2;
         String clientID = Utils.decodeString(in);
         if (clientID == null) {
             in.resetReaderIndex();
             return null;
         }
         message.setClientID(clientID);
+        message.setClientIDBytes(clientIDIndex, in.readerIndex() - clientIDIndex);
 
-        //Decode willTopic
+        //Decode willTopic, skipping the MQTT 5 will properties
         if (willFlag) {
+            if (message.getProtocolVersion() == Utils.VERSION_5) {
+                in.skipBytes(Utils.decodeRemainingLength(in));
+            }
             String willTopic = Utils.decodeString(in);
             if (willTopic == null) {
                 in.resetReaderIndex();
@@ -217,4 +230,31 @@ public class ConnectDecoder extends DemuxDecoder<ConnectMessage> {
 
         return message;
     }
+
+    private void decodeProperties(ConnectMessage message, ByteBuf in)
+    {
+        int propertiesLength = Utils.decodeRemainingLength(in);
+        int end = in.readerIndex() + propertiesLength;
+        while (in.readerIndex() < end) {
+            //all the identifiers are encoded on a single byte
+            int id = in.readUnsignedByte();
+            switch (id) {
+                case MqttProperties.TOPIC_ALIAS_MAXIMUM:
+                    message.setTopicAliasMaximum(in.readUnsignedShort());
+                    break;
+                case MqttProperties.RECEIVE_MAXIMUM:
+                    message.setReceiveMaximum(in.readUnsignedShort());
+                    break;
+                case MqttProperties.MAXIMUM_PACKET_SIZE:
+                    message.setMaximumPacketSize(in.readUnsignedInt());
+                    break;
+                case MqttProperties.SESSION_EXPIRY_INTERVAL:
+                    message.setSessionExpiryInterval(in.readUnsignedInt());
+                    break;
+                default:
+                    in.skipBytes(MqttProperties.valueLength(in, id, in.readerIndex()));
+                    break;
+            }
+        }
+    }
 }
@@ -0,0 +1,89 @@
+package com.github.sylvek.wsmqttfwd.decoder;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.CorruptedFrameException;
+
+/**
+ * MQTT 5 properties (see MQTT 5.0 section 2.2.2).
+ */
+public class MqttProperties {
+
+    public static final int SESSION_EXPIRY_INTERVAL = 0x11;
+    public static final int RECEIVE_MAXIMUM = 0x21;
+    public static final int MAXIMUM_PACKET_SIZE = 0x27;
+    public static final int TOPIC_ALIAS_MAXIMUM = 0x22;
+    public static final int TOPIC_ALIAS = 0x23;
+
+    /**
+     * Return the length of the value of the property identified by id and starting at the given index.
+     */
+    public static int valueLength(ByteBuf in, int id, int index)
+    {
+        switch (id) {
+            case 0x01: // payload format indicator
+            case 0x17: // request problem information
+            case 0x19: // request response information
+            case 0x24: // maximum QoS
+            case 0x25: // retain available
+            case 0x28: // wildcard subscription available
+            case 0x29: // subscription identifier available
+            case 0x2A: // shared subscription available
+                return 1;
+            case 0x13: // server keep alive
+            case RECEIVE_MAXIMUM:
+            case TOPIC_ALIAS_MAXIMUM:
+            case TOPIC_ALIAS:
+                return 2;
+            case 0x02: // message expiry interval
+            case SESSION_EXPIRY_INTERVAL:
+            case 0x18: // will delay interval
+            case MAXIMUM_PACKET_SIZE:
+                return 4;
+            case 0x0B: // subscription identifier
+                return variableByteIntegerLength(in, index);
+            case 0x03: // content type
+            case 0x08: // response topic
+            case 0x09: // correlation data
+            case 0x12: // assigned client identifier
+            case 0x15: // authentication method
+            case 0x16: // authentication data
+            case 0x1A: // response information
+            case 0x1C: // server reference
+            case 0x1F: // reason string
+                return 2 + in.getUnsignedShort(index);
+            case 0x26: // user property
+                final int nameLength = 2 + in.getUnsignedShort(index);
+                return nameLength + 2 + in.getUnsignedShort(index + nameLength);
+            default:
+                throw new CorruptedFrameException("Invalid property identifier: " + id);
+        }
+    }
+
+    /**
+     * Return the number of bytes of the variable byte integer starting at the given index.
+     */
+    public static int variableByteIntegerLength(ByteBuf in, int index)
+    {
+        int length = 1;
+        while ((in.getByte(index + length - 1) & 0x80) != 0) {
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Decode the variable byte integer starting at the given index without moving the reader index.
+     */
+    public static int getVariableByteInteger(ByteBuf in, int index)
+    {
+        int multiplier = 1;
+        int value = 0;
+        byte digit;
+        do {
+            digit = in.getByte(index++);
+            value += (digit & 0x7F) * multiplier;
+            multiplier *= 128;
+        } while ((digit & 0x80) != 0);
+        return value;
+    }
+}
@@ -0,0 +1,24 @@
+package com.github.sylvek.wsmqttfwd.decoder;
+
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+
+/**
+ * Splits a MQTT byte stream into one ByteBuf per complete packet.
+ * The emitted buffers are retained slices of the received data, nothing is copied.
+ */
+public class PacketSplitter extends ByteToMessageDecoder {
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception
+    {
+        int length = Utils.packetLength(in);
+        if (length == -1 || in.readableBytes() < length) {
+            return;
+        }
+        out.add(in.readSlice(length).retain());
+    }
+}
@@ -0,0 +1,256 @@
+package com.github.sylvek.wsmqttfwd.decoder;
+
+import com.github.sylvek.wsmqttfwd.message.AbstractMessage;
+import com.github.sylvek.wsmqttfwd.message.PublishMessage;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.util.CharsetUtil;
+
+/**
+ * Reusable view of the MQTT packet at the reader index of a ByteBuf. The fixed header, and the variable header of a PUBLISH,
+ * are parsed in a single pass without moving the reader index, copying nor allocating anything: the view only holds the
+ * offsets of the fields in the packet. The topic is only decoded, and the message objects only built, when asked for.
+ * A view is meant to be owned by a handler and wrapped around each packet it reads, it is only valid until the packet is released.
+ */
+public class PacketView {
+
+    private ByteBuf buf;
+    private int start;
+    private int header;
+    private int remainingLength;
+    private int variableHeaderIndex;
+    private int end;
+
+    // PUBLISH only
+    private int topicIndex;
+    private int topicLength;
+    private int messageID;
+    private int topicAlias;
+    private int payloadIndex;
+    private String topic;
+
+    /**
+     * Wrap the packet at the reader index of the given buffer.
+     *
+     * @param v5 true if the packet is a MQTT 5 one, the PUBLISH properties are parsed for the topic alias
+     * @return false if the buffer does not hold the whole packet
+     */
+    public boolean wrap(ByteBuf in, boolean v5)
+    {
+        buf = null;
+        topic = null;
+        start = in.readerIndex();
+        if (in.writerIndex() - start < 2) {
+            return false;
+        }
+        header = in.getUnsignedByte(start);
+
+        // remaining length, at most 4 bytes
+        int index = start + 1;
+        int multiplier = 1;
+        int value = 0;
+        byte digit;
+        do {
+            if (index >= in.writerIndex()) {
+                return false;
+            }
+            if (multiplier > 128 * 128 * 128) {
+                throw new CorruptedFrameException("Remaining length exceeds 4 bytes");
+            }
+            digit = in.getByte(index++);
+            value += (digit & 0x7F) * multiplier;
+            multiplier *= 128;
+        } while ((digit & 0x80) != 0);
+        remainingLength = value;
+        variableHeaderIndex = index;
+        end = index + value;
+        if (end > in.writerIndex()) {
+            return false;
+        }
+        buf = in;
+
+        if (messageType() == AbstractMessage.PUBLISH) {
+            wrapPublish(v5);
+        }
+        return true;
+    }
+
+    private void wrapPublish(boolean v5)
+    {
+        if (qos() == 3) {
+            throw new CorruptedFrameException("Received an invalid QOS: 3");
+        }
+        topicIndex = variableHeaderIndex + 2;
+        if (topicIndex > end) {
+            throw new CorruptedFrameException("PUBLISH variable header exceeds the remaining length");
+        }
+        topicLength = buf.getUnsignedShort(variableHeaderIndex);
+        int index = topicIndex + topicLength;
+        if (index + (qos() > 0 ? 2 : 0) > end) {
+            throw new CorruptedFrameException("PUBLISH variable header exceeds the remaining length");
+        }
+        //[MQTT-3.3.2-2] The Topic Name in the PUBLISH Packet MUST NOT contain wildcard characters.
+        for (int i = topicIndex; i < index; i++) {
+            final byte b = buf.getByte(i);
+            if (b == '+' || b == '#') {
+                throw new CorruptedFrameException("Received a PUBLISH with topic containing wild card chars");
+            }
+        }
+        messageID = 0;
+        if (qos() > 0) {
+            messageID = buf.getUnsignedShort(index);
+            index += 2;
+        }
+        topicAlias = 0;
+        if (v5) {
+            final int propertiesLength = MqttProperties.getVariableByteInteger(buf, index);
+            index += MqttProperties.variableByteIntegerLength(buf, index);
+            final int propertiesEnd = index + propertiesLength;
+            if (propertiesEnd > end) {
+                throw new CorruptedFrameException("PUBLISH variable header exceeds the remaining length");
+            }
+            while (index < propertiesEnd) {
+                final int id = buf.getUnsignedByte(index++);
+                if (id == MqttProperties.TOPIC_ALIAS) {
+                    topicAlias = buf.getUnsignedShort(index);
+                }
+                index += MqttProperties.valueLength(buf, id, index);
+            }
+        }
+        //check topic is at least one char [MQTT-4.7.3-1], unless it is replaced by a topic alias
+        if (topicLength == 0 && topicAlias == 0) {
+            throw new CorruptedFrameException("Received a PUBLISH with topic without any character");
+        }
+        if (index > end) {
+            throw new CorruptedFrameException("PUBLISH variable header exceeds the remaining length");
+        }
+        payloadIndex = index;
+    }
+
+    /**
+     * Forget the wrapped packet, so the view does not keep it reachable.
+     */
+    public void clear()
+    {
+        buf = null;
+        topic = null;
+    }
+
+    public byte messageType()
+    {
+        return (byte) (header >> 4);
+    }
+
+    public int flags()
+    {
+        return header & 0x0F;
+    }
+
+    public int qos()
+    {
+        return (header & 0x06) >> 1;
+    }
+
+    public boolean isDup()
+    {
+        return (header & 0x08) != 0;
+    }
+
+    public boolean isRetain()
+    {
+        return (header & 0x01) != 0;
+    }
+
+    public int remainingLength()
+    {
+        return remainingLength;
+    }
+
+    /**
+     * The whole packet length, fixed header included.
+     */
+    public int packetLength()
+    {
+        return end - start;
+    }
+
+    public int variableHeaderIndex()
+    {
+        return variableHeaderIndex;
+    }
+
+    public int topicIndex()
+    {
+        return topicIndex;
+    }
+
+    public int topicLength()
+    {
+        return topicLength;
+    }
+
+    /**
+     * The topic of the PUBLISH, decoded on the first call, empty if replaced by a topic alias.
+     */
+    public String topic()
+    {
+        if (topic == null) {
+            topic = buf.toString(topicIndex, topicLength, CharsetUtil.UTF_8);
+        }
+        return topic;
+    }
+
+    /**
+     * The message ID of a QoS1 or QoS2 PUBLISH, 0 otherwise.
+     */
+    public int messageID()
+    {
+        return messageID;
+    }
+
+    /**
+     * The MQTT 5 topic alias of the PUBLISH, 0 if not set.
+     */
+    public int topicAlias()
+    {
+        return topicAlias;
+    }
+
+    public int payloadIndex()
+    {
+        return payloadIndex;
+    }
+
+    public int payloadLength()
+    {
+        return end - payloadIndex;
+    }
+
+    /**
+     * A slice of the PUBLISH payload, sharing the content and the reference count of the packet.
+     */
+    public ByteBuf payload()
+    {
+        return buf.slice(payloadIndex, end - payloadIndex);
+    }
+
+    /**
+     * Build the message of the wrapped PUBLISH, for the callers needing it, its payload is a view of the packet.
+     */
+    public PublishMessage toPublishMessage()
+    {
+        final PublishMessage message = new PublishMessage();
+        message.setDupFlag(isDup());
+        message.setQos(AbstractMessage.QOSType.valueOf((byte) qos()));
+        message.setRetainFlag(isRetain());
+        message.setRemainingLength(remainingLength);
+        message.setTopicName(topic());
+        if (qos() > 0) {
+            message.setMessageID(messageID);
+        }
+        message.setTopicAlias(topicAlias);
+        message.setPayload(buf.nioBuffer(payloadIndex, end - payloadIndex));
+        return message;
+    }
+}
@@ -49,9 +49,15 @@ public class SubscribeDecoder extends DemuxDecoder<SubscribeMessage> {
         int start = in.readerIndex();
         //read  messageIDs
         message.setMessageID(in.readUnsignedShort());
+        //MQTT 5 properties, the subscription identifier is not used
+        Integer version = ctx.attr(ConnectDecoder.PROTOCOL_VERSION).get();
+        boolean v5 = version != null && version == Utils.VERSION_5;
+        if (v5) {
+            in.skipBytes(Utils.decodeRemainingLength(in));
+        }
         int read = in.readerIndex() - start;
         while (read < message.getRemainingLength()) {
-            decodeSubscription(in, message);
+            decodeSubscription(in, message, v5);
             read = in.readerIndex() - start;
         }
 
@@ -65,7 +71,7 @@ public class SubscribeDecoder extends DemuxDecoder<SubscribeMessage> {
     /**
      * Populate the message with couple of Qos, topic
      */
-    private void decodeSubscription(ByteBuf in, SubscribeMessage message) throws UnsupportedEncodingException
+    private void decodeSubscription(ByteBuf in, SubscribeMessage message, boolean v5) throws UnsupportedEncodingException
     {
         String topic = Utils.decodeString(in);
         //check topic is at least one char [MQTT-4.7.3-1]
@@ -73,12 +79,13 @@ public class SubscribeDecoder extends DemuxDecoder<SubscribeMessage> {
             throw new CorruptedFrameException("Received a SUBSCRIBE with empty topic filter");
         }
         byte qosByte = in.readByte();
-        if ((qosByte & 0xFC) > 0) { //the first 6 bits is reserved => has to be 0
+        //the first 6 bits is reserved => has to be 0, MQTT 5 uses 4 of them for the subscription options
+        if ((qosByte & (v5 ? 0xC0 : 0xFC)) > 0) {
             throw new CorruptedFrameException("subscribe MUST have QoS byte with reserved buts to 0, found " + Integer.toHexString(qosByte));
         }
         byte qos = (byte) (qosByte & 0x03);
         //TODO check qos id 000000xx
-        message.addSubscription(new SubscribeMessage.Couple(qos, topic));
+        message.addSubscription(new SubscribeMessage.Couple(qos, topic, (byte) (qosByte & 0xFC)));
     }
 
 }
@@ -0,0 +1,53 @@
+package com.github.sylvek.wsmqttfwd.decoder;
+
+import com.github.sylvek.wsmqttfwd.message.AbstractMessage;
+import com.github.sylvek.wsmqttfwd.message.UnsubscribeMessage;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.util.AttributeMap;
+
+public class UnsubscribeDecoder extends DemuxDecoder<UnsubscribeMessage> {
+
+    @Override
+    public UnsubscribeMessage decode(AttributeMap ctx, ByteBuf in) throws Exception
+    {
+        //Common decoding part
+        in.resetReaderIndex();
+        UnsubscribeMessage message = new UnsubscribeMessage();
+        if (!decodeCommonHeader(message, 0x02, in)) {
+            in.resetReaderIndex();
+            return null;
+        }
+
+        //check qos level
+        if (message.getQos() != AbstractMessage.QOSType.LEAST_ONE) {
+            throw new CorruptedFrameException("Found an Unsubscribe message with qos other than LEAST_ONE, was: " + message.getQos());
+        }
+
+        int start = in.readerIndex();
+        //read  messageIDs
+        message.setMessageID(in.readUnsignedShort());
+        //MQTT 5 properties
+        Integer version = ctx.attr(ConnectDecoder.PROTOCOL_VERSION).get();
+        if (version != null && version == Utils.VERSION_5) {
+            in.skipBytes(Utils.decodeRemainingLength(in));
+        }
+        int read = in.readerIndex() - start;
+        while (read < message.getRemainingLength()) {
+            String topicFilter = Utils.decodeString(in);
+            //check topic is at least one char [MQTT-4.7.3-1]
+            if (topicFilter.length() == 0) {
+                throw new CorruptedFrameException("Received an UNSUBSCRIBE with empty topic filter");
+            }
+            message.addTopicFilter(topicFilter);
+            read = in.readerIndex() - start;
+        }
+
+        if (message.topicFilters().isEmpty()) {
+            throw new CorruptedFrameException("unsubscribe MUST have got at least 1 topic");
+        }
+
+        return message;
+    }
+}
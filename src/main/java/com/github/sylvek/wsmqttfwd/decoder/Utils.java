@@ -18,6 +18,7 @@ package com.github.sylvek.wsmqttfwd.decoder;
 import java.io.UnsupportedEncodingException;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.CorruptedFrameException;
 
 /**
  * @author andrea
@@ -27,6 +28,7 @@ public class Utils {
 
     public static final byte VERSION_3_1 = 3;
     public static final byte VERSION_3_1_1 = 4;
+    public static final byte VERSION_5 = 5;
 
     public static byte readMessageType(ByteBuf in)
     {
@@ -58,6 +60,45 @@ public class Utils {
         return true;
     }
 
+    /**
+     * Return the full length (fixed header included) of the packet starting at the reader index,
+     * without moving the reader index.
+     *
+     * @return the packet length or -1 if needed more data to decode the length field.
+     */
+    public static int packetLength(ByteBuf in)
+    {
+        int start = in.readerIndex();
+        int index = start + 1;
+        int multiplier = 1;
+        int value = 0;
+        byte digit;
+        do {
+            if (index >= in.writerIndex()) {
+                return -1;
+            }
+            if (multiplier > 128 * 128 * 128) {
+                throw new CorruptedFrameException("Remaining length exceeds 4 bytes");
+            }
+            digit = in.getByte(index++);
+            value += (digit & 0x7F) * multiplier;
+            multiplier *= 128;
+        } while ((digit & 0x80) != 0);
+        return value + index - start;
+    }
+
+    /**
+     * Return the absolute index of the variable header of the complete packet starting at the reader index.
+     */
+    public static int variableHeaderIndex(ByteBuf in)
+    {
+        int index = in.readerIndex() + 1;
+        while ((in.getByte(index++) & 0x80) != 0) {
+            // skip the remaining length bytes
+        }
+        return index;
+    }
+
     /**
      * Decode the variable remaining length as defined in MQTT v3.1 specification
      * (section 2.1).
@@ -112,7 +153,7 @@ public class Utils {
     /**
      * Return the number of bytes to encode the gicen remaining length value
      */
-    static int numBytesToEncode(int len)
+    public static int numBytesToEncode(int len)
     {
         if (0 <= len && len <= 127) return 1;
         if (128 <= len && len <= 16383) return 2;
@@ -0,0 +1,163 @@
+package com.github.sylvek.wsmqttfwd.encoder;
+
+import com.github.sylvek.wsmqttfwd.decoder.Utils;
+import com.github.sylvek.wsmqttfwd.message.AbstractMessage;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.util.CharsetUtil;
+
+/**
+ * Encodes the few MQTT packets the forwarder has to generate by itself.
+ */
+public class PacketEncoder {
+
+    /**
+     * Encode a PUBACK, PUBREC, PUBREL, PUBCOMP or UNSUBACK packet for the given message ID.
+     */
+    public static ByteBuf ack(ByteBufAllocator alloc, byte messageType, int messageID)
+    {
+        ByteBuf out = alloc.buffer(4);
+        out.writeByte(messageType << 4 | (messageType == AbstractMessage.PUBREL ? 0x02 : 0x00));
+        out.writeByte(2);
+        out.writeShort(messageID);
+        return out;
+    }
+
+    /**
+     * Encode a CONNACK packet, the first byte is the reserved one (3.1) or the session present flag (3.1.1).
+     */
+    public static ByteBuf connAck(ByteBufAllocator alloc, byte returnCode)
+    {
+        ByteBuf out = alloc.buffer(4);
+        out.writeByte(AbstractMessage.CONNACK << 4);
+        out.writeByte(2);
+        out.writeByte(0);
+        out.writeByte(returnCode);
+        return out;
+    }
+
+    /**
+     * Encode a CONNACK packet for the given protocol version, the MQTT 5 one has no properties.
+     */
+    public static ByteBuf connAck(ByteBufAllocator alloc, byte protocolVersion, byte returnCode)
+    {
+        if (protocolVersion != Utils.VERSION_5) {
+            return connAck(alloc, returnCode);
+        }
+        ByteBuf out = alloc.buffer(5);
+        out.writeByte(AbstractMessage.CONNACK << 4);
+        out.writeByte(3);
+        out.writeByte(0);
+        out.writeByte(returnCode);
+        out.writeByte(0);
+        return out;
+    }
+
+    /**
+     * Encode a SUBACK packet granting the same QoS to each of the count subscriptions.
+     */
+    public static ByteBuf subAck(ByteBufAllocator alloc, int messageID, int count, byte grantedQos)
+    {
+        ByteBuf out = alloc.buffer(6 + count);
+        out.writeByte(AbstractMessage.SUBACK << 4);
+        writeRemainingLength(out, 2 + count);
+        out.writeShort(messageID);
+        for (int i = 0; i < count; i++) {
+            out.writeByte(grantedQos);
+        }
+        return out;
+    }
+
+    /**
+     * Encode a QoS0 PUBLISH packet for the given protocol version, the MQTT 5 one has no properties.
+     */
+    public static ByteBuf publish(ByteBufAllocator alloc, byte protocolVersion, String topic, byte[] payload, boolean retain)
+    {
+        final byte[] name = topic.getBytes(CharsetUtil.UTF_8);
+        final boolean v5 = protocolVersion == Utils.VERSION_5;
+        final int remainingLength = 2 + name.length + (v5 ? 1 : 0) + payload.length;
+        ByteBuf out = alloc.buffer(5 + remainingLength);
+        out.writeByte(AbstractMessage.PUBLISH << 4 | (retain ? 0x01 : 0x00));
+        writeRemainingLength(out, remainingLength);
+        out.writeShort(name.length);
+        out.writeBytes(name);
+        if (v5) {
+            out.writeByte(0);
+        }
+        out.writeBytes(payload);
+        return out;
+    }
+
+    public static ByteBuf pingReq(ByteBufAllocator alloc)
+    {
+        return alloc.buffer(2).writeByte(AbstractMessage.PINGREQ << 4).writeByte(0);
+    }
+
+    public static ByteBuf pingResp(ByteBufAllocator alloc)
+    {
+        return alloc.buffer(2).writeByte(AbstractMessage.PINGRESP << 4).writeByte(0);
+    }
+
+    /**
+     * Encode a MQTT 3.1.1 CONNECT packet without will nor credentials.
+     */
+    public static ByteBuf connect(ByteBufAllocator alloc, String clientID, boolean cleanSession, int keepAlive)
+    {
+        final byte[] id = clientID.getBytes(CharsetUtil.UTF_8);
+        final int remainingLength = 10 + 2 + id.length;
+        ByteBuf out = alloc.buffer(5 + remainingLength);
+        out.writeByte(AbstractMessage.CONNECT << 4);
+        writeRemainingLength(out, remainingLength);
+        out.writeShort(4);
+        out.writeBytes("MQTT".getBytes(CharsetUtil.UTF_8));
+        out.writeByte(Utils.VERSION_3_1_1);
+        out.writeByte(cleanSession ? 0x02 : 0x00);
+        out.writeShort(keepAlive);
+        out.writeShort(id.length);
+        out.writeBytes(id);
+        return out;
+    }
+
+    public static ByteBuf subscribe(ByteBufAllocator alloc, int messageID, String topicFilter, byte qos)
+    {
+        final byte[] filter = topicFilter.getBytes(CharsetUtil.UTF_8);
+        final int remainingLength = 2 + 2 + filter.length + 1;
+        ByteBuf out = alloc.buffer(5 + remainingLength);
+        out.writeByte(AbstractMessage.SUBSCRIBE << 4 | 0x02);
+        writeRemainingLength(out, remainingLength);
+        out.writeShort(messageID);
+        out.writeShort(filter.length);
+        out.writeBytes(filter);
+        out.writeByte(qos);
+        return out;
+    }
+
+    public static ByteBuf unsubscribe(ByteBufAllocator alloc, int messageID, String topicFilter)
+    {
+        final byte[] filter = topicFilter.getBytes(CharsetUtil.UTF_8);
+        final int remainingLength = 2 + 2 + filter.length;
+        ByteBuf out = alloc.buffer(5 + remainingLength);
+        out.writeByte(AbstractMessage.UNSUBSCRIBE << 4 | 0x02);
+        writeRemainingLength(out, remainingLength);
+        out.writeShort(messageID);
+        out.writeShort(filter.length);
+        out.writeBytes(filter);
+        return out;
+    }
+
+    /**
+     * Encode the remaining length as defined in MQTT v3.1 specification (section 2.1).
+     */
+    public static void writeRemainingLength(ByteBuf out, int length)
+    {
+        do {
+            int digit = length % 128;
+            length = length / 128;
+            if (length > 0) {
+                digit = digit | 0x80;
+            }
+            out.writeByte(digit);
+        } while (length > 0);
+    }
+}
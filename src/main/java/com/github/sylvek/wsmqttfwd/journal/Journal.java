@@ -0,0 +1,128 @@
+package com.github.sylvek.wsmqttfwd.journal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Store-and-forward settings and counters shared by all the sessions.
+ * The journals only live during a broker outage, the session journals left by a previous run are deleted at startup.
+ * Each segment is a memory mapping, counted against vm.max_map_count, so their number is bounded across all the sessions.
+ */
+public class Journal {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Journal.class);
+
+    // well below the default vm.max_map_count of 65530
+    public static final int DEFAULT_MAX_SEGMENTS = 16384;
+
+    // the names of the session directories and of their segments, the only files the journal deletes
+    private static final Pattern SESSION = Pattern.compile("\\d+");
+    private static final Pattern SEGMENT = Pattern.compile("\\d{8,}\\.seg");
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final int maxLiveSegments;
+    private final long maxOutage;
+
+    private final AtomicLong sessions = new AtomicLong();
+    private final AtomicInteger liveSegments = new AtomicInteger();
+
+    final AtomicInteger offline = new AtomicInteger();
+    final AtomicLong outages = new AtomicLong();
+    final AtomicLong restored = new AtomicLong();
+    final AtomicLong lost = new AtomicLong();
+    final AtomicLong journaled = new AtomicLong();
+    final AtomicLong replayed = new AtomicLong();
+    final AtomicLong dropped = new AtomicLong();
+
+    public Journal(File directory, int segmentSize, int maxSegmentsPerSession, long maxOutageMillis)
+    {
+        this(directory, segmentSize, maxSegmentsPerSession, DEFAULT_MAX_SEGMENTS, maxOutageMillis);
+    }
+
+    /**
+     * @param maxSegments number of segments mapped at the same time by all the sessions
+     */
+    public Journal(File directory, int segmentSize, int maxSegmentsPerSession, int maxSegments, long maxOutageMillis)
+    {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegmentsPerSession;
+        this.maxLiveSegments = maxSegments;
+        this.maxOutage = maxOutageMillis;
+        deleteSessions(directory);
+    }
+
+    public long getMaxOutage()
+    {
+        return maxOutage;
+    }
+
+    SessionJournal open()
+    {
+        return new SessionJournal(this, new File(directory, Long.toString(sessions.incrementAndGet())), segmentSize, maxSegments);
+    }
+
+    /**
+     * @return false if all the segments allowed are already mapped
+     */
+    boolean acquireSegment()
+    {
+        int live;
+        do {
+            live = liveSegments.get();
+            if (live >= maxLiveSegments) {
+                return false;
+            }
+        } while (!liveSegments.compareAndSet(live, live + 1));
+        return true;
+    }
+
+    void releaseSegment()
+    {
+        liveSegments.decrementAndGet();
+    }
+
+    public String status()
+    {
+        return "{\"offline\":" + offline.get() +
+                ",\"outages\":" + outages.get() +
+                ",\"restored\":" + restored.get() +
+                ",\"lost\":" + lost.get() +
+                ",\"journaled\":" + journaled.get() +
+                ",\"replayed\":" + replayed.get() +
+                ",\"dropped\":" + dropped.get() +
+                ",\"segments\":" + liveSegments.get() +
+                ",\"maxSegments\":" + maxLiveSegments + "}";
+    }
+
+    /**
+     * Delete the numbered session directories and their segments, anything else in the directory is left untouched.
+     */
+    private static void deleteSessions(File directory)
+    {
+        final File[] sessions = directory.listFiles(file -> file.isDirectory() && SESSION.matcher(file.getName()).matches());
+        if (sessions == null) {
+            return;
+        }
+        for (File session : sessions) {
+            final File[] segments = session.listFiles(file -> file.isFile() && SEGMENT.matcher(file.getName()).matches());
+            if (segments != null) {
+                for (File segment : segments) {
+                    if (!segment.delete()) {
+                        LOG.warn("unable to delete {}", segment);
+                    }
+                }
+            }
+            if (!session.delete()) {
+                LOG.warn("unable to delete {}, it holds files not created by the journal", session);
+            }
+        }
+    }
+}
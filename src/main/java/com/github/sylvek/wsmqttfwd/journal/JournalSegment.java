@@ -0,0 +1,121 @@
+package com.github.sylvek.wsmqttfwd.journal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+/**
+ * Fixed size file mapped in memory, holding length prefixed records appended one after the other.
+ */
+class JournalSegment {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JournalSegment.class);
+
+    // Unsafe.invokeCleaner since Java 9, null before
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            invokeCleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private final File file;
+    private final MappedByteBuffer buffer;
+
+    private int writePosition;
+    private int readPosition;
+
+    JournalSegment(File file, int size) throws IOException
+    {
+        this.file = file;
+        // the mapping stays valid once the file is closed
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    /**
+     * @return false if the record does not fit in the remaining space
+     */
+    boolean append(ByteBuf record)
+    {
+        final int length = record.readableBytes();
+        if (writePosition + 4 + length > buffer.capacity()) {
+            return false;
+        }
+        buffer.putInt(writePosition, length);
+        final ByteBuffer target = buffer.duplicate();
+        target.position(writePosition + 4).limit(writePosition + 4 + length);
+        record.getBytes(record.readerIndex(), target);
+        writePosition += 4 + length;
+        return true;
+    }
+
+    /**
+     * @return the next record or null if all the appended records have been read
+     */
+    ByteBuf poll(ByteBufAllocator alloc)
+    {
+        if (readPosition >= writePosition) {
+            return null;
+        }
+        final int length = buffer.getInt(readPosition);
+        final ByteBuffer source = buffer.duplicate();
+        source.position(readPosition + 4).limit(readPosition + 4 + length);
+        readPosition += 4 + length;
+        return alloc.buffer(length).writeBytes(source);
+    }
+
+    /**
+     * Unmap and delete the file, the segment must not be used anymore.
+     */
+    void delete()
+    {
+        unmap(buffer);
+        file.delete();
+    }
+
+    /**
+     * Release the mapping right away instead of when the buffer is collected, falls back to the collection if not possible.
+     */
+    private static void unmap(MappedByteBuffer buffer)
+    {
+        try {
+            if (INVOKE_CLEANER != null) {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+                return;
+            }
+            final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            final Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOG.debug("unable to unmap a journal segment, it is released when collected", e);
+        }
+    }
+}
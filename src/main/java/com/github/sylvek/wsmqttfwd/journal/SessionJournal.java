@@ -0,0 +1,103 @@
+package com.github.sylvek.wsmqttfwd.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+/**
+ * Journal of the packets of one session, made of memory mapped segments created on demand
+ * and deleted as soon as they have been read. Only used from the event loop of the session.
+ */
+public class SessionJournal {
+
+    private final Journal journal;
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final ArrayDeque<JournalSegment> segments = new ArrayDeque<>();
+
+    private int sequence;
+    private int records;
+
+    SessionJournal(Journal journal, File directory, int segmentSize, int maxSegments)
+    {
+        this.journal = journal;
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+    }
+
+    /**
+     * Copy the packet at the end of the journal, the packet is not released.
+     *
+     * @return false if the journal is full, or if all the sessions together reached the maximum number of segments
+     */
+    public boolean append(ByteBuf packet) throws IOException
+    {
+        JournalSegment segment = segments.peekLast();
+        if (segment == null || !segment.append(packet)) {
+            if (segments.size() >= maxSegments || packet.readableBytes() + 4 > segmentSize || !journal.acquireSegment()) {
+                return false;
+            }
+            try {
+                if (!directory.isDirectory() && !directory.mkdirs()) {
+                    throw new IOException("unable to create " + directory);
+                }
+                segment = new JournalSegment(new File(directory, String.format("%08d.seg", sequence++)), segmentSize);
+            } catch (IOException e) {
+                journal.releaseSegment();
+                throw e;
+            }
+            segments.add(segment);
+            segment.append(packet);
+        }
+        records++;
+        return true;
+    }
+
+    /**
+     * @return the oldest packet of the journal or null if it is empty
+     */
+    public ByteBuf poll(ByteBufAllocator alloc)
+    {
+        JournalSegment segment;
+        while ((segment = segments.peekFirst()) != null) {
+            final ByteBuf packet = segment.poll(alloc);
+            if (packet != null) {
+                records--;
+                return packet;
+            }
+            // drained, the next append creates a new segment
+            segments.pollFirst().delete();
+            journal.releaseSegment();
+        }
+        return null;
+    }
+
+    public boolean isEmpty()
+    {
+        return records == 0;
+    }
+
+    public int size()
+    {
+        return records;
+    }
+
+    /**
+     * Delete all the segments and the directory of the journal.
+     */
+    public void delete()
+    {
+        JournalSegment segment;
+        while ((segment = segments.poll()) != null) {
+            segment.delete();
+            journal.releaseSegment();
+        }
+        records = 0;
+        directory.delete();
+    }
+}
@@ -0,0 +1,308 @@
+package com.github.sylvek.wsmqttfwd.journal;
+
+import com.github.sylvek.wsmqttfwd.decoder.Utils;
+import com.github.sylvek.wsmqttfwd.encoder.PacketEncoder;
+import com.github.sylvek.wsmqttfwd.message.AbstractMessage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+
+/**
+ * Keeps a client session open while its broker connection is lost.
+ * During the outage, the client packets are appended to a journal (QoS0 publications are dropped) and the pings are answered locally.
+ * Once reconnected, the CONNECT and the SUBSCRIBE/UNSUBSCRIBE packets of the session are sent again, their acknowledgements
+ * are swallowed since the client already got them, then the journal is replayed in order.
+ * Only used from the event loop of the session.
+ */
+public class StoreAndForward {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StoreAndForward.class);
+
+    private static final int MAX_SESSION_PACKETS = 1024;
+
+    // MQTT 5 DISCONNECT reason codes
+    private static final int UNSPECIFIED_ERROR = 0x80;
+    private static final int SERVER_BUSY = 0x89;
+    private static final int SERVER_SHUTTING_DOWN = 0x8B;
+
+    private enum State {
+        ONLINE, OFFLINE, REPLAYING
+    }
+
+    private final Journal journal;
+    private final Channel inboundChannel;
+
+    private State state = State.ONLINE;
+    // the broker accepted the session at least once
+    private boolean established;
+    private boolean restorable = true;
+
+    private ByteBuf connect;
+    private List<ByteBuf> subscriptions = new ArrayList<>();
+    private SessionJournal sessionJournal;
+    private ScheduledFuture<?> outageTimeout;
+
+    private Channel outboundChannel;
+    private boolean swallowConnAck;
+    private int pendingAcks;
+
+    public StoreAndForward(Journal journal, Channel inboundChannel)
+    {
+        this.journal = journal;
+        this.inboundChannel = inboundChannel;
+    }
+
+    public boolean isOnline()
+    {
+        return state == State.ONLINE;
+    }
+
+    /**
+     * Called for each client packet sent to the broker, keeps a copy of the packets needed to restore the session.
+     */
+    public void sent(ByteBuf packet)
+    {
+        if (!restorable) {
+            return;
+        }
+        final byte messageType = messageType(packet);
+        if (messageType == AbstractMessage.CONNECT) {
+            if (connect != null) {
+                connect.release();
+            }
+            connect = Unpooled.copiedBuffer(packet);
+        } else if (messageType == AbstractMessage.SUBSCRIBE || messageType == AbstractMessage.UNSUBSCRIBE) {
+            if (subscriptions.size() >= MAX_SESSION_PACKETS) {
+                LOG.debug("too many subscriptions, the session of {} can not be restored", inboundChannel);
+                restorable = false;
+                release();
+                return;
+            }
+            subscriptions.add(Unpooled.copiedBuffer(packet));
+        }
+    }
+
+    /**
+     * Called when the broker connection is lost.
+     *
+     * @return false if the session can not be kept open
+     */
+    public boolean startOutage()
+    {
+        if (!established || !restorable || connect == null || state != State.ONLINE) {
+            return false;
+        }
+        state = State.OFFLINE;
+        journal.offline.incrementAndGet();
+        journal.outages.incrementAndGet();
+        outageTimeout = inboundChannel.eventLoop().schedule(() -> {
+            if (state != State.ONLINE) {
+                LOG.info("broker outage longer than {} ms, closing {}", journal.getMaxOutage(), inboundChannel);
+                journal.lost.incrementAndGet();
+                inboundChannel.close();
+            }
+        }, journal.getMaxOutage(), TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * Handle a client packet while the broker connection is not online, the packet is released.
+     * The client pipeline splits the frames, so the packet is a single MQTT packet.
+     */
+    public void store(ChannelHandlerContext ctx, ByteBuf packet)
+    {
+        try {
+            switch (messageType(packet)) {
+                case AbstractMessage.PINGREQ:
+                    ctx.writeAndFlush(PacketEncoder.pingResp(ctx.alloc()));
+                    break;
+                case AbstractMessage.DISCONNECT:
+                    ctx.close();
+                    break;
+                case AbstractMessage.PUBLISH:
+                    if ((packet.getByte(packet.readerIndex()) & 0x06) == 0) {
+                        journal.dropped.incrementAndGet();
+                    } else {
+                        append(ctx, packet);
+                    }
+                    break;
+                default:
+                    append(ctx, packet);
+                    break;
+            }
+        } catch (IOException e) {
+            LOG.warn("unable to journal a packet of " + inboundChannel, e);
+            journal.lost.incrementAndGet();
+            ctx.close();
+        } finally {
+            packet.release();
+        }
+    }
+
+    private void append(ChannelHandlerContext ctx, ByteBuf packet) throws IOException
+    {
+        if (sessionJournal == null) {
+            sessionJournal = journal.open();
+        }
+        if (sessionJournal.append(packet)) {
+            journal.journaled.incrementAndGet();
+        } else {
+            LOG.info("journal full, closing {}", inboundChannel);
+            journal.lost.incrementAndGet();
+            ctx.close();
+        }
+    }
+
+    /**
+     * Restore the session on the new broker connection and replay the journal.
+     */
+    public void replay(Channel outboundChannel)
+    {
+        this.outboundChannel = outboundChannel;
+        state = State.REPLAYING;
+        swallowConnAck = true;
+        outboundChannel.write(connect.duplicate().retain());
+        for (ByteBuf subscription : subscriptions) {
+            outboundChannel.write(subscription.duplicate().retain());
+            pendingAcks++;
+        }
+        drain();
+    }
+
+    public ChannelHandler newBackendHandler()
+    {
+        return new BackendHandler();
+    }
+
+    /**
+     * Release the session resources once the client connection is closed.
+     */
+    public void close()
+    {
+        if (state != State.ONLINE) {
+            journal.offline.decrementAndGet();
+            state = State.ONLINE;
+        }
+        if (outageTimeout != null) {
+            outageTimeout.cancel(false);
+        }
+        if (sessionJournal != null) {
+            sessionJournal.delete();
+            sessionJournal = null;
+        }
+        release();
+    }
+
+    private void drain()
+    {
+        if (state != State.REPLAYING) {
+            return;
+        }
+        while (outboundChannel.isWritable()) {
+            final ByteBuf packet = sessionJournal == null ? null : sessionJournal.poll(outboundChannel.alloc());
+            if (packet == null) {
+                online();
+                break;
+            }
+            sent(packet);
+            outboundChannel.write(packet);
+            journal.replayed.incrementAndGet();
+        }
+        outboundChannel.flush();
+    }
+
+    private void online()
+    {
+        LOG.info("session of {} restored", inboundChannel);
+        state = State.ONLINE;
+        journal.offline.decrementAndGet();
+        journal.restored.incrementAndGet();
+        outageTimeout.cancel(false);
+        outageTimeout = null;
+    }
+
+    private void release()
+    {
+        if (connect != null) {
+            connect.release();
+            connect = null;
+        }
+        for (ByteBuf subscription : subscriptions) {
+            subscription.release();
+        }
+        subscriptions.clear();
+    }
+
+    private static byte messageType(ByteBuf packet)
+    {
+        return (byte) ((packet.getByte(packet.readerIndex()) & 0x00F0) >> 4);
+    }
+
+    /**
+     * Watches the broker packets, it expects one complete packet per ByteBuf.
+     */
+    private class BackendHandler extends ChannelInboundHandlerAdapter {
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception
+        {
+            if (msg instanceof ByteBuf) {
+                final ByteBuf in = (ByteBuf) msg;
+                final byte messageType = messageType(in);
+                if (messageType == AbstractMessage.CONNACK) {
+                    final byte returnCode = in.getByte(Utils.variableHeaderIndex(in) + 1);
+                    if (swallowConnAck) {
+                        swallowConnAck = false;
+                        in.release();
+                        if (returnCode != 0) {
+                            LOG.info("session of {} refused by the broker ({}), closing", inboundChannel, returnCode);
+                            journal.lost.incrementAndGet();
+                            inboundChannel.close();
+                        }
+                        ctx.read();
+                        return;
+                    }
+                    established = returnCode == 0;
+                } else if ((messageType == AbstractMessage.SUBACK || messageType == AbstractMessage.UNSUBACK) && pendingAcks > 0) {
+                    pendingAcks--;
+                    in.release();
+                    ctx.read();
+                    return;
+                } else if (messageType == AbstractMessage.DISCONNECT) {
+                    // MQTT 5 broker closing the connection, the session is only kept when the broker is unavailable
+                    final int index = Utils.variableHeaderIndex(in);
+                    final int reasonCode = index < in.writerIndex() ? in.getUnsignedByte(index) : 0;
+                    if (established && restorable && (reasonCode == UNSPECIFIED_ERROR || reasonCode == SERVER_BUSY || reasonCode == SERVER_SHUTTING_DOWN)) {
+                        in.release();
+                        ctx.read();
+                        return;
+                    }
+                    restorable = false;
+                }
+            }
+            super.channelRead(ctx, msg);
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception
+        {
+            if (ctx.channel().isWritable()) {
+                drain();
+            }
+            super.channelWritabilityChanged(ctx);
+        }
+    }
+}
@@ -24,6 +24,7 @@ package com.github.sylvek.wsmqttfwd.message;
 public abstract class AbstractMessage {
 
     public static final byte CONNECT = 1; // Client request to connect to Server
+    public static final byte CONNACK = 2; // Connect Acknowledgment
     public static final byte PUBLISH = 3; // Publish message
     public static final byte PUBACK = 4; // Publish Acknowledgment
     public static final byte PUBREC = 5; //Publish Received (assured delivery part 1)
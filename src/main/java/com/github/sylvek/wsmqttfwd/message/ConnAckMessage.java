@@ -0,0 +1,83 @@
+package com.github.sylvek.wsmqttfwd.message;
+
+public class ConnAckMessage extends AbstractMessage {
+
+    public static final byte IDENTIFIER_REJECTED = 0x02;
+    public static final byte SERVER_UNAVAILABLE = 0x03;
+    public static final byte BAD_USER_NAME_OR_PASSWORD = 0x04;
+
+    //MQTT 5 reason codes
+    public static final byte UNSUPPORTED_PROTOCOL_VERSION_5 = (byte) 0x84;
+    public static final byte CLIENT_IDENTIFIER_NOT_VALID = (byte) 0x85;
+    public static final byte BAD_USER_NAME_OR_PASSWORD_5 = (byte) 0x86;
+    public static final byte SERVER_UNAVAILABLE_5 = (byte) 0x88;
+
+    protected boolean m_sessionPresent;
+    protected byte m_returnCode;
+
+    //MQTT 5 properties
+    protected int m_topicAliasMaximum;
+    protected int m_receiveMaximum = 65535;
+    protected long m_maximumPacketSize;
+
+    public ConnAckMessage()
+    {
+        m_messageType = CONNACK;
+    }
+
+    public boolean isSessionPresent()
+    {
+        return m_sessionPresent;
+    }
+
+    public void setSessionPresent(boolean sessionPresent)
+    {
+        this.m_sessionPresent = sessionPresent;
+    }
+
+    /**
+     * The return code in MQTT 3.1 and 3.1.1, the reason code in MQTT 5.
+     */
+    public byte getReturnCode()
+    {
+        return m_returnCode;
+    }
+
+    public void setReturnCode(byte returnCode)
+    {
+        this.m_returnCode = returnCode;
+    }
+
+    public int getTopicAliasMaximum()
+    {
+        return m_topicAliasMaximum;
+    }
+
+    public void setTopicAliasMaximum(int topicAliasMaximum)
+    {
+        this.m_topicAliasMaximum = topicAliasMaximum;
+    }
+
+    public int getReceiveMaximum()
+    {
+        return m_receiveMaximum;
+    }
+
+    public void setReceiveMaximum(int receiveMaximum)
+    {
+        this.m_receiveMaximum = receiveMaximum;
+    }
+
+    /**
+     * 0 if the server has no limit
+     */
+    public long getMaximumPacketSize()
+    {
+        return m_maximumPacketSize;
+    }
+
+    public void setMaximumPacketSize(long maximumPacketSize)
+    {
+        this.m_maximumPacketSize = maximumPacketSize;
+    }
+}
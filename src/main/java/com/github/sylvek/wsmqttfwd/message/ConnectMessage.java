@@ -38,8 +38,17 @@ public class ConnectMessage extends AbstractMessage {
     protected String m_username;
     protected byte[] m_password;
     protected String m_clientID;
+    //UTF-8 bytes of the clientID in the decoded packet
+    protected int m_clientIDIndex = -1;
+    protected int m_clientIDLength;
     protected String m_willtopic;
     protected byte[] m_willMessage;
+
+    //MQTT 5 properties
+    protected int m_topicAliasMaximum;
+    protected int m_receiveMaximum = 65535;
+    protected long m_maximumPacketSize;
+    protected long m_sessionExpiryInterval;
     
     public ConnectMessage() {
         m_messageType = CONNECT;
@@ -141,6 +150,22 @@ public class ConnectMessage extends AbstractMessage {
         this.m_clientID = clientID;
     }
 
+    /**
+     * Index of the UTF-8 bytes of the clientID in the decoded packet, -1 if the packet has no clientID.
+     */
+    public int getClientIDIndex() {
+        return m_clientIDIndex;
+    }
+
+    public int getClientIDLength() {
+        return m_clientIDLength;
+    }
+
+    public void setClientIDBytes(int index, int length) {
+        this.m_clientIDIndex = index;
+        this.m_clientIDLength = length;
+    }
+
     public String getWillTopic() {
         return m_willtopic;
     }
@@ -157,6 +182,41 @@ public class ConnectMessage extends AbstractMessage {
         this.m_willMessage = willMessage;
     }
 
+    public int getTopicAliasMaximum() {
+        return m_topicAliasMaximum;
+    }
+
+    public void setTopicAliasMaximum(int topicAliasMaximum) {
+        this.m_topicAliasMaximum = topicAliasMaximum;
+    }
+
+    public int getReceiveMaximum() {
+        return m_receiveMaximum;
+    }
+
+    public void setReceiveMaximum(int receiveMaximum) {
+        this.m_receiveMaximum = receiveMaximum;
+    }
+
+    /**
+     * 0 if the client has no limit
+     */
+    public long getMaximumPacketSize() {
+        return m_maximumPacketSize;
+    }
+
+    public void setMaximumPacketSize(long maximumPacketSize) {
+        this.m_maximumPacketSize = maximumPacketSize;
+    }
+
+    public long getSessionExpiryInterval() {
+        return m_sessionExpiryInterval;
+    }
+
+    public void setSessionExpiryInterval(long sessionExpiryInterval) {
+        this.m_sessionExpiryInterval = sessionExpiryInterval;
+    }
+
     @Override
     public String toString() {
         String base = String.format("Connect [clientID: %s, prot: %s, ver: %02X, clean: %b]", m_clientID, m_protocolName, m_protocolVersion, m_cleanSession);
@@ -29,6 +29,8 @@ public class PublishMessage extends AbstractMessage {
 
     protected ByteBuffer m_payload;
 
+    protected int m_topicAlias; //MQTT 5 only, 0 if not set
+
     public Integer getMessageID()
     {
         return m_messageID;
@@ -54,6 +56,16 @@ public class PublishMessage extends AbstractMessage {
         this.m_topicName = topicName;
     }
 
+    public int getTopicAlias()
+    {
+        return m_topicAlias;
+    }
+
+    public void setTopicAlias(int topicAlias)
+    {
+        this.m_topicAlias = topicAlias;
+    }
+
     public ByteBuffer getPayload()
     {
         return m_payload;
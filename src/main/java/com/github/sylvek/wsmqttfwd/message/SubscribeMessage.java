@@ -41,11 +41,27 @@ public class SubscribeMessage extends AbstractMessage {
 
         public final byte qos;
         public final String topicFilter;
+        // MQTT 5 subscription options, without the QoS
+        public final byte options;
 
         public Couple(byte qos, String topic)
+        {
+            this(qos, topic, (byte) 0);
+        }
+
+        public Couple(byte qos, String topic, byte options)
         {
             this.qos = qos;
             this.topicFilter = topic;
+            this.options = options;
+        }
+
+        /**
+         * MQTT 5 retain handling, 2 when the retained messages must not be sent on subscribe.
+         */
+        public int retainHandling()
+        {
+            return (options & 0x30) >> 4;
         }
 
     }
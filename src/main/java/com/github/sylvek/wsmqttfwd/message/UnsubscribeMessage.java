@@ -0,0 +1,37 @@
+package com.github.sylvek.wsmqttfwd.message;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class UnsubscribeMessage extends AbstractMessage {
+
+    protected Integer m_messageID;
+
+    private List<String> m_topicFilters = new ArrayList<>();
+
+    public UnsubscribeMessage()
+    {
+        m_messageType = UNSUBSCRIBE;
+        m_qos = AbstractMessage.QOSType.LEAST_ONE;
+    }
+
+    public Integer getMessageID()
+    {
+        return m_messageID;
+    }
+
+    public void setMessageID(Integer messageID)
+    {
+        this.m_messageID = messageID;
+    }
+
+    public List<String> topicFilters()
+    {
+        return m_topicFilters;
+    }
+
+    public void addTopicFilter(String topic)
+    {
+        m_topicFilters.add(topic);
+    }
+}
@@ -0,0 +1,175 @@
+package com.github.sylvek.wsmqttfwd.shared;
+
+import com.github.sylvek.wsmqttfwd.decoder.Utils;
+import com.github.sylvek.wsmqttfwd.encoder.PacketEncoder;
+import com.github.sylvek.wsmqttfwd.message.AbstractMessage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.function.Supplier;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+
+/**
+ * Serves a client from the upstream pool as long as it only publishes QoS0 packets: CONNECT and PINGREQ are answered
+ * locally and the PUBLISH packets go through a pooled session. Any other packet (SUBSCRIBE, QoS1 or QoS2 PUBLISH...)
+ * gives the client its own broker connection, opened with its CONNECT, and the CONNACK of the broker is not sent again.
+ * The MQTT 5 clients and the CONNECT with a persistent session or a will get their own broker connection right away.
+ */
+public class PooledPublishHandler extends ChannelDuplexHandler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PooledPublishHandler.class);
+
+    private static final int CLEAN_SESSION_FLAG = 0x02;
+    private static final int WILL_FLAG = 0x04;
+
+    private final UpstreamPool pool;
+    private final Supplier<ChannelHandler> forwarder;
+
+    // copy of the CONNECT answered locally, sent to the broker when the client gets its own connection
+    private ByteBuf connect;
+    private int session;
+    private boolean upgraded;
+    private boolean swallowConnAck;
+
+    /**
+     * @param forwarder creates the handler forwarding the client to its own broker connection
+     */
+    public PooledPublishHandler(UpstreamPool pool, Supplier<ChannelHandler> forwarder)
+    {
+        this.pool = pool;
+        this.forwarder = forwarder;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception
+    {
+        if (upgraded || !(msg instanceof ByteBuf)) {
+            super.channelRead(ctx, msg);
+            return;
+        }
+
+        // one packet per message, split by the client pipeline, so the AuthenticationHandler checked it
+        final ByteBuf in = (ByteBuf) msg;
+        if (handlePacket(ctx, in, in.readableBytes())) {
+            in.release();
+        } else {
+            upgrade(ctx, in);
+        }
+    }
+
+    /**
+     * @return false if the packet needs a broker connection of its own
+     */
+    private boolean handlePacket(ChannelHandlerContext ctx, ByteBuf in, int length)
+    {
+        final byte h1 = in.getByte(in.readerIndex());
+        switch ((byte) ((h1 & 0x00F0) >> 4)) {
+            case AbstractMessage.CONNECT:
+                if (connect != null || !isPoolable(in)) {
+                    return false;
+                }
+                connect = in.copy(in.readerIndex(), length);
+                session = pool.assign();
+                pool.pooledClients.incrementAndGet();
+                in.skipBytes(length);
+                ctx.writeAndFlush(PacketEncoder.connAck(ctx.alloc(), (byte) 0));
+                return true;
+            case AbstractMessage.PUBLISH:
+                if ((h1 & 0x0006) != 0) {
+                    return false;
+                }
+                pool.publish(session, in.readSlice(length).retain());
+                return true;
+            case AbstractMessage.PINGREQ:
+                in.skipBytes(length);
+                ctx.writeAndFlush(PacketEncoder.pingResp(ctx.alloc()));
+                return true;
+            case AbstractMessage.DISCONNECT:
+                in.skipBytes(in.readableBytes());
+                ctx.close();
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * MQTT 5 properties, persistent sessions and wills are bound to a broker session of the client.
+     */
+    private static boolean isPoolable(ByteBuf connect)
+    {
+        final int protocolNameIndex = Utils.variableHeaderIndex(connect);
+        final int levelIndex = protocolNameIndex + 2 + connect.getUnsignedShort(protocolNameIndex);
+        final int flags = connect.getUnsignedByte(levelIndex + 1);
+        return connect.getByte(levelIndex) != Utils.VERSION_5 && (flags & CLEAN_SESSION_FLAG) != 0 && (flags & WILL_FLAG) == 0;
+    }
+
+    /**
+     * Give the client its own broker connection, starting with its CONNECT, then the packet not handled by the pool.
+     */
+    private void upgrade(ChannelHandlerContext ctx, ByteBuf remaining)
+    {
+        upgraded = true;
+        ctx.pipeline().addAfter(ctx.name(), "forward", forwarder.get());
+        if (connect != null) {
+            LOG.debug("{} leaves the upstream pool", ctx.channel());
+            pool.pooledClients.decrementAndGet();
+            pool.upgrades.incrementAndGet();
+            swallowConnAck = true;
+            ctx.fireChannelRead(connect);
+            connect = null;
+            ctx.fireChannelRead(remaining);
+        } else {
+            ctx.fireChannelRead(remaining);
+            ctx.pipeline().remove(this);
+        }
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception
+    {
+        // the broker packets are complete when the pool is enabled (see PacketSplitter)
+        if (swallowConnAck && msg instanceof ByteBuf && ((((ByteBuf) msg).getByte(((ByteBuf) msg).readerIndex()) & 0xF0) >> 4) == AbstractMessage.CONNACK) {
+            final ByteBuf connAck = (ByteBuf) msg;
+            final byte returnCode = connAck.getByte(Utils.variableHeaderIndex(connAck) + 1);
+            connAck.release();
+            promise.trySuccess();
+            swallowConnAck = false;
+            ctx.pipeline().remove(this);
+            if (returnCode != 0) {
+                LOG.debug("{} refused by the broker ({}) once out of the upstream pool", ctx.channel(), returnCode);
+                ctx.close();
+            }
+            return;
+        }
+        super.write(ctx, msg, promise);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception
+    {
+        if (connect != null) {
+            connect.release();
+            connect = null;
+            pool.pooledClients.decrementAndGet();
+        }
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception
+    {
+        if (upgraded) {
+            super.exceptionCaught(ctx, cause);
+            return;
+        }
+        LOG.debug("pooled session failure", cause);
+        ctx.close();
+    }
+}
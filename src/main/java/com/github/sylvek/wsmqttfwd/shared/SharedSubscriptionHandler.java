@@ -0,0 +1,130 @@
+package com.github.sylvek.wsmqttfwd.shared;
+
+import com.github.sylvek.wsmqttfwd.decoder.SubscribeDecoder;
+import com.github.sylvek.wsmqttfwd.decoder.UnsubscribeDecoder;
+import com.github.sylvek.wsmqttfwd.decoder.Utils;
+import com.github.sylvek.wsmqttfwd.encoder.PacketEncoder;
+import com.github.sylvek.wsmqttfwd.message.AbstractMessage;
+import com.github.sylvek.wsmqttfwd.message.ConnAckMessage;
+import com.github.sylvek.wsmqttfwd.message.SubscribeMessage;
+import com.github.sylvek.wsmqttfwd.message.UnsubscribeMessage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * Replaces the broker connection of a client when the shared subscriptions are enabled.
+ * CONNECT, SUBSCRIBE, UNSUBSCRIBE and PINGREQ are answered locally and QoS0 PUBLISH packets
+ * go through the upstream session; other QoS are not supported and close the connection.
+ */
+public class SharedSubscriptionHandler extends ChannelInboundHandlerAdapter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SharedSubscriptionHandler.class);
+
+    private static final byte QOS0 = 0;
+
+    private final SharedSubscriptions subscriptions;
+    private final Set<String> topicFilters = new HashSet<>();
+
+    public SharedSubscriptionHandler(SharedSubscriptions subscriptions)
+    {
+        this.subscriptions = subscriptions;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception
+    {
+        if (!(msg instanceof ByteBuf)) {
+            ReferenceCountUtil.release(msg);
+            return;
+        }
+
+        // one packet per message, split by the client pipeline
+        final ByteBuf in = (ByteBuf) msg;
+        try {
+            handlePacket(ctx, in);
+        } finally {
+            in.release();
+        }
+    }
+
+    private void handlePacket(ChannelHandlerContext ctx, ByteBuf packet) throws Exception
+    {
+        final byte h1 = packet.getByte(packet.readerIndex());
+        switch ((byte) ((h1 & 0x00F0) >> 4)) {
+            case AbstractMessage.CONNECT:
+                final int protocolNameIndex = Utils.variableHeaderIndex(packet);
+                final byte protocolVersion = packet.getByte(protocolNameIndex + 2 + packet.getUnsignedShort(protocolNameIndex));
+                if (protocolVersion == Utils.VERSION_5) {
+                    // the acknowledgements and the deliveries of this mode are MQTT 3.1.1 packets
+                    LOG.debug("MQTT 5 clients are not supported with shared subscriptions");
+                    ctx.writeAndFlush(PacketEncoder.connAck(ctx.alloc(), protocolVersion, ConnAckMessage.UNSUPPORTED_PROTOCOL_VERSION_5))
+                            .addListener(ChannelFutureListener.CLOSE);
+                    break;
+                }
+                ctx.writeAndFlush(PacketEncoder.connAck(ctx.alloc(), protocolVersion, (byte) 0));
+                break;
+            case AbstractMessage.SUBSCRIBE:
+                final SubscribeMessage subscribeMessage = new SubscribeDecoder().decode(ctx, packet);
+                for (String topicFilter : subscribeMessage.topics()) {
+                    if (topicFilters.add(topicFilter)) {
+                        subscriptions.subscribe(ctx.channel(), topicFilter);
+                    }
+                }
+                ctx.writeAndFlush(PacketEncoder.subAck(ctx.alloc(), subscribeMessage.getMessageID(), subscribeMessage.subscriptions().size(), QOS0));
+                break;
+            case AbstractMessage.UNSUBSCRIBE:
+                final UnsubscribeMessage unsubscribeMessage = new UnsubscribeDecoder().decode(ctx, packet);
+                for (String topicFilter : unsubscribeMessage.topicFilters()) {
+                    if (topicFilters.remove(topicFilter)) {
+                        subscriptions.unsubscribe(ctx.channel(), topicFilter);
+                    }
+                }
+                ctx.writeAndFlush(PacketEncoder.ack(ctx.alloc(), AbstractMessage.UNSUBACK, unsubscribeMessage.getMessageID()));
+                break;
+            case AbstractMessage.PUBLISH:
+                if ((h1 & 0x0006) != 0) {
+                    LOG.debug("only QoS0 PUBLISH are supported with shared subscriptions");
+                    ctx.close();
+                    break;
+                }
+                subscriptions.publish(packet.retain());
+                break;
+            case AbstractMessage.PINGREQ:
+                ctx.writeAndFlush(PacketEncoder.pingResp(ctx.alloc()));
+                break;
+            case AbstractMessage.DISCONNECT:
+                ctx.close();
+                break;
+            default:
+                break;
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception
+    {
+        for (String topicFilter : topicFilters) {
+            subscriptions.unsubscribe(ctx.channel(), topicFilter);
+        }
+        topicFilters.clear();
+
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception
+    {
+        LOG.debug("shared session failure", cause);
+        ctx.close();
+    }
+}
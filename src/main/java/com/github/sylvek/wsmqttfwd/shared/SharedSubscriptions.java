@@ -0,0 +1,139 @@
+package com.github.sylvek.wsmqttfwd.shared;
+
+import com.github.sylvek.wsmqttfwd.TopicMatcher;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+
+/**
+ * Holds one upstream subscription per distinct topic filter and fans out the QoS0 deliveries
+ * to all the local subscribers. The WebSocket frame is built once and its content is shared by all the channels.
+ */
+public class SharedSubscriptions implements UpstreamSession.Listener {
+
+    private static final byte QOS0 = 0;
+
+    private final ConcurrentMap<String, Set<Channel>> exactFilters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Set<Channel>> wildcardFilters = new ConcurrentHashMap<>();
+    private final UpstreamSession upstream;
+
+    private final AtomicLong droppedDeliveries = new AtomicLong();
+
+    public SharedSubscriptions(EventLoopGroup group, String host, int port, String clientID, int keepAlive)
+    {
+        this.upstream = new UpstreamSession(group, host, port, clientID, keepAlive, this);
+    }
+
+    public void start()
+    {
+        upstream.start();
+    }
+
+    public void stop()
+    {
+        upstream.stop();
+    }
+
+    /**
+     * Number of deliveries dropped because the local subscriber was not writable.
+     */
+    public long getDroppedDeliveries()
+    {
+        return droppedDeliveries.get();
+    }
+
+    public void subscribe(Channel channel, String topicFilter)
+    {
+        // the upstream packets are written while holding the filter entry so SUBSCRIBE and UNSUBSCRIBE keep their order
+        filters(topicFilter).compute(topicFilter, (filter, channels) -> {
+            if (channels == null) {
+                channels = ConcurrentHashMap.newKeySet();
+                upstream.subscribe(filter, QOS0);
+            }
+            channels.add(channel);
+            return channels;
+        });
+    }
+
+    public void unsubscribe(Channel channel, String topicFilter)
+    {
+        filters(topicFilter).computeIfPresent(topicFilter, (filter, channels) -> {
+            channels.remove(channel);
+            if (channels.isEmpty()) {
+                upstream.unsubscribe(filter);
+                return null;
+            }
+            return channels;
+        });
+    }
+
+    /**
+     * Forward a QoS0 PUBLISH packet of a local client through the upstream session.
+     */
+    public boolean publish(ByteBuf packet)
+    {
+        return upstream.publish(packet);
+    }
+
+    @Override
+    public void onConnected(UpstreamSession session)
+    {
+        for (String topicFilter : exactFilters.keySet()) {
+            session.subscribe(topicFilter, QOS0);
+        }
+        for (String topicFilter : wildcardFilters.keySet()) {
+            session.subscribe(topicFilter, QOS0);
+        }
+    }
+
+    @Override
+    public void onPublish(UpstreamSession session, ByteBuf packet, String topic)
+    {
+        Set<Channel> targets = exactFilters.get(topic);
+        boolean merged = false;
+        for (Map.Entry<String, Set<Channel>> entry : wildcardFilters.entrySet()) {
+            if (TopicMatcher.matches(entry.getKey(), topic)) {
+                if (targets == null) {
+                    targets = entry.getValue();
+                } else {
+                    if (!merged) {
+                        targets = new HashSet<>(targets);
+                        merged = true;
+                    }
+                    targets.addAll(entry.getValue());
+                }
+            }
+        }
+
+        if (targets == null) {
+            return;
+        }
+
+        final BinaryWebSocketFrame frame = new BinaryWebSocketFrame(packet.retain());
+        try {
+            for (Channel channel : targets) {
+                if (channel.isWritable()) {
+                    channel.writeAndFlush(frame.duplicate().retain(), channel.voidPromise());
+                } else {
+                    droppedDeliveries.incrementAndGet();
+                }
+            }
+        } finally {
+            frame.release();
+        }
+    }
+
+    private ConcurrentMap<String, Set<Channel>> filters(String topicFilter)
+    {
+        return TopicMatcher.isWildcard(topicFilter) ? wildcardFilters : exactFilters;
+    }
+}
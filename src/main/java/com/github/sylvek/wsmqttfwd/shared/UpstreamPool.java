@@ -0,0 +1,98 @@
+package com.github.sylvek.wsmqttfwd.shared;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.EventLoopGroup;
+
+/**
+ * Small pool of upstream sessions shared by the clients which only publish QoS0 packets, so the broker holds
+ * a handful of sessions per forwarder instead of one per client. Each client is assigned a session at CONNECT,
+ * its packets keep their order as long as this session is connected, otherwise they go through the next connected one.
+ */
+public class UpstreamPool implements UpstreamSession.Listener {
+
+    private final UpstreamSession[] sessions;
+    private final AtomicInteger next = new AtomicInteger();
+
+    final AtomicInteger pooledClients = new AtomicInteger();
+    final AtomicLong upgrades = new AtomicLong();
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    public UpstreamPool(EventLoopGroup group, String host, int port, String clientIDPrefix, int size, int keepAlive)
+    {
+        this.sessions = new UpstreamSession[size];
+        for (int i = 0; i < size; i++) {
+            sessions[i] = new UpstreamSession(group, host, port, clientIDPrefix + "-" + i, keepAlive, this);
+        }
+    }
+
+    public void start()
+    {
+        for (UpstreamSession session : sessions) {
+            session.start();
+        }
+    }
+
+    public void stop()
+    {
+        for (UpstreamSession session : sessions) {
+            session.stop();
+        }
+    }
+
+    /**
+     * Session index assigned to a new client.
+     */
+    int assign()
+    {
+        return (next.getAndIncrement() & 0x7FFFFFFF) % sessions.length;
+    }
+
+    /**
+     * Forward a QoS0 PUBLISH packet of a client through its session, or the next connected one.
+     * The packet is dropped if no session is connected and writable.
+     */
+    boolean publish(int index, ByteBuf packet)
+    {
+        for (int i = 0; i < sessions.length; i++) {
+            final UpstreamSession session = sessions[(index + i) % sessions.length];
+            if (session.isConnected() && session.isWritable() && session.publish(packet)) {
+                published.incrementAndGet();
+                return true;
+            }
+        }
+        packet.release();
+        dropped.incrementAndGet();
+        return false;
+    }
+
+    public String status()
+    {
+        int connected = 0;
+        for (UpstreamSession session : sessions) {
+            if (session.isConnected()) {
+                connected++;
+            }
+        }
+        return "{\"sessions\":" + sessions.length +
+                ",\"connected\":" + connected +
+                ",\"pooledClients\":" + pooledClients.get() +
+                ",\"upgrades\":" + upgrades.get() +
+                ",\"published\":" + published.get() +
+                ",\"dropped\":" + dropped.get() + "}";
+    }
+
+    @Override
+    public void onConnected(UpstreamSession session)
+    {
+        // the pooled sessions never subscribe
+    }
+
+    @Override
+    public void onPublish(UpstreamSession session, ByteBuf packet, String topic)
+    {
+    }
+}
@@ -0,0 +1,258 @@
+package com.github.sylvek.wsmqttfwd.shared;
+
+import com.github.sylvek.wsmqttfwd.decoder.PacketSplitter;
+import com.github.sylvek.wsmqttfwd.decoder.Utils;
+import com.github.sylvek.wsmqttfwd.encoder.PacketEncoder;
+import com.github.sylvek.wsmqttfwd.message.AbstractMessage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.timeout.IdleState;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * MQTT session owned by the forwarder itself. It keeps its broker connection alive and reconnects it when lost.
+ */
+public class UpstreamSession {
+
+    private static final Logger LOG = LoggerFactory.getLogger(UpstreamSession.class);
+
+    private static final long MIN_RECONNECT_DELAY = 1000;
+    private static final long MAX_RECONNECT_DELAY = 30000;
+
+    public interface Listener {
+        void onConnected(UpstreamSession session);
+
+        /**
+         * The packet is released by the session once this method returns.
+         */
+        void onPublish(UpstreamSession session, ByteBuf packet, String topic);
+    }
+
+    private final EventLoopGroup group;
+    private final String host;
+    private final int port;
+    private final String clientID;
+    private final int keepAlive;
+    private final Listener listener;
+
+    private final AtomicInteger messageIDs = new AtomicInteger();
+
+    private volatile Channel channel;
+    private volatile boolean connected;
+    private volatile boolean stopped;
+    private long reconnectDelay = MIN_RECONNECT_DELAY;
+
+    public UpstreamSession(EventLoopGroup group, String host, int port, String clientID, int keepAlive, Listener listener)
+    {
+        this.group = group;
+        this.host = host;
+        this.port = port;
+        this.clientID = clientID;
+        this.keepAlive = keepAlive;
+        this.listener = listener;
+    }
+
+    public String getClientID()
+    {
+        return clientID;
+    }
+
+    public boolean isConnected()
+    {
+        return connected;
+    }
+
+    public boolean isWritable()
+    {
+        final Channel ch = channel;
+        return ch != null && ch.isWritable();
+    }
+
+    public void start()
+    {
+        connect();
+    }
+
+    public void stop()
+    {
+        stopped = true;
+        final Channel ch = channel;
+        if (ch != null) {
+            ch.close();
+        }
+    }
+
+    public void subscribe(String topicFilter, byte qos)
+    {
+        final Channel ch = channel;
+        if (connected && ch != null) {
+            ch.writeAndFlush(PacketEncoder.subscribe(ch.alloc(), nextMessageID(), topicFilter, qos));
+        }
+    }
+
+    public void unsubscribe(String topicFilter)
+    {
+        final Channel ch = channel;
+        if (connected && ch != null) {
+            ch.writeAndFlush(PacketEncoder.unsubscribe(ch.alloc(), nextMessageID(), topicFilter));
+        }
+    }
+
+    /**
+     * Send a QoS0 PUBLISH packet, it is dropped if the session is not connected.
+     *
+     * @return true if the packet has been written
+     */
+    public boolean publish(ByteBuf packet)
+    {
+        final Channel ch = channel;
+        if (connected && ch != null) {
+            ch.writeAndFlush(packet);
+            return true;
+        }
+        packet.release();
+        return false;
+    }
+
+    private int nextMessageID()
+    {
+        return (messageIDs.incrementAndGet() & 0x7FFFFFFF) % 0xFFFF + 1;
+    }
+
+    private void connect()
+    {
+        if (stopped) {
+            return;
+        }
+
+        Bootstrap b = new Bootstrap();
+        b.group(group)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) throws Exception
+                    {
+                        ch.pipeline().addLast("splitter", new PacketSplitter());
+                        ch.pipeline().addLast("idle", new IdleStateHandler(keepAlive * 3 / 2, keepAlive / 2, 0));
+                        ch.pipeline().addLast("session", new UpstreamHandler());
+                    }
+                });
+        b.connect(host, port).addListener((ChannelFutureListener) future -> {
+            if (!future.isSuccess()) {
+                LOG.warn("upstream session {} unable to connect to {}:{}", clientID, host, port);
+                scheduleReconnect();
+            }
+        });
+    }
+
+    private void scheduleReconnect()
+    {
+        if (stopped) {
+            return;
+        }
+        group.schedule(this::connect, reconnectDelay, TimeUnit.MILLISECONDS);
+        reconnectDelay = Math.min(reconnectDelay * 2, MAX_RECONNECT_DELAY);
+    }
+
+    private class UpstreamHandler extends ChannelInboundHandlerAdapter {
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception
+        {
+            channel = ctx.channel();
+            if (stopped) {
+                ctx.close();
+                return;
+            }
+            ctx.writeAndFlush(PacketEncoder.connect(ctx.alloc(), clientID, true, keepAlive));
+            super.channelActive(ctx);
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception
+        {
+            if (!(msg instanceof ByteBuf)) {
+                ReferenceCountUtil.release(msg);
+                return;
+            }
+
+            final ByteBuf in = (ByteBuf) msg;
+            try {
+                final byte messageType = (byte) ((in.getByte(in.readerIndex()) & 0x00F0) >> 4);
+                switch (messageType) {
+                    case AbstractMessage.CONNACK:
+                        final byte returnCode = in.getByte(in.readerIndex() + 3);
+                        if (returnCode != 0) {
+                            LOG.error("upstream session {} refused by the broker, return code {}", clientID, returnCode);
+                            ctx.close();
+                            break;
+                        }
+                        LOG.info("upstream session {} connected to {}:{}", clientID, host, port);
+                        reconnectDelay = MIN_RECONNECT_DELAY;
+                        connected = true;
+                        listener.onConnected(UpstreamSession.this);
+                        break;
+                    case AbstractMessage.PUBLISH:
+                        final int topicIndex = Utils.variableHeaderIndex(in);
+                        final String topic = in.toString(topicIndex + 2, in.getUnsignedShort(topicIndex), CharsetUtil.UTF_8);
+                        listener.onPublish(UpstreamSession.this, in, topic);
+                        break;
+                    default:
+                        break;
+                }
+            } finally {
+                in.release();
+            }
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception
+        {
+            if (evt instanceof IdleStateEvent) {
+                if (((IdleStateEvent) evt).state() == IdleState.READER_IDLE) {
+                    LOG.warn("upstream session {} timed out", clientID);
+                    ctx.close();
+                } else {
+                    ctx.writeAndFlush(PacketEncoder.pingReq(ctx.alloc()));
+                }
+            }
+            super.userEventTriggered(ctx, evt);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception
+        {
+            LOG.info("upstream session {} disconnected", clientID);
+            connected = false;
+            channel = null;
+            scheduleReconnect();
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception
+        {
+            LOG.warn("upstream session " + clientID + " failure", cause);
+            ctx.close();
+        }
+    }
+}
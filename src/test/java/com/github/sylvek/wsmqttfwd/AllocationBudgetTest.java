@@ -0,0 +1,211 @@
+package com.github.sylvek.wsmqttfwd;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.util.ReferenceCountUtil;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Bytes allocated per packet by the client pipeline: the WebSocket codecs of the server and the authentication handler.
+ * The budgets ratchet: lower them when a change saves allocations, never raise them without a reason.
+ */
+public class AllocationBudgetTest {
+
+    // bytes per packet
+    private static final long CONNECT_BUDGET = 544;
+    private static final long SUBSCRIBE_BUDGET = 640;
+    private static final long PUBLISH_BUDGET = 128;
+    private static final long PINGREQ_BUDGET = 8;
+    private static final long DELIVERY_BUDGET = 32;
+
+    private static final int WARMUP = 20000;
+    private static final int PACKETS = 20000;
+    // a CONNECT is only accepted once per connection, each one needs its own channel
+    private static final int CONNECTS = 2000;
+
+    private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static final byte[] CONNECT = {0x10, 14, 0, 4, 'M', 'Q', 'T', 'T', 4, 2, 0, 60, 0, 2, 'i', 'd'};
+    private static final byte[] SUBSCRIBE = {(byte) 0x82, 16, 0, 1, 0, 11, 'd', 'e', 'v', 'i', 'c', 'e', 's', '/', 'i', 'd', '/', 1};
+    private static final byte[] PUBLISH = {0x30, 22, 0, 14, 'd', 'e', 'v', 'i', 'c', 'e', 's', '/', 'i', 'd', '/', 't', 'm', 'p', '2', '1', '.', '5', 'C', '!'};
+    private static final byte[] PINGREQ = {(byte) 0xC0, 0};
+
+    private EmbeddedChannel channel;
+    private int received;
+    private int sent;
+
+    @Before
+    public void setUp()
+    {
+        assumeTrue(THREADS.isThreadAllocatedMemorySupported());
+        THREADS.setThreadAllocatedMemoryEnabled(true);
+
+        channel = newChannel();
+        channel.pipeline().fireChannelRead(frame(CONNECT));
+    }
+
+    /**
+     * The client pipeline of the server between the WebSocket handshake and the broker connection.
+     */
+    private EmbeddedChannel newChannel()
+    {
+        return new EmbeddedChannel(
+                new ChannelOutboundHandlerAdapter() {
+                    @Override
+                    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise)
+                    {
+                        sent++;
+                        ReferenceCountUtil.release(msg);
+                    }
+                },
+                new Server.WebSocketFrameToByteBufDecoder(),
+                new Server.ByteBufToWebSocketFrameEncoder(),
+                new AuthenticationHandler(new AllowAll()),
+                new ChannelInboundHandlerAdapter() {
+                    @Override
+                    public void channelRead(ChannelHandlerContext ctx, Object msg)
+                    {
+                        received++;
+                        ReferenceCountUtil.release(msg);
+                    }
+                });
+    }
+
+    @Test
+    public void connect()
+    {
+        final EmbeddedChannel[] channels = new EmbeddedChannel[2 * CONNECTS];
+        final BinaryWebSocketFrame[] frames = new BinaryWebSocketFrame[channels.length];
+        for (int i = 0; i < channels.length; i++) {
+            channels[i] = newChannel();
+            frames[i] = frame(CONNECT);
+        }
+        received = 0;
+        for (int i = 0; i < CONNECTS; i++) {
+            channels[i].pipeline().fireChannelRead(frames[i]);
+        }
+        final long before = allocatedBytes();
+        for (int i = CONNECTS; i < channels.length; i++) {
+            channels[i].pipeline().fireChannelRead(frames[i]);
+        }
+        final long perPacket = (allocatedBytes() - before) / CONNECTS;
+
+        assertEquals(channels.length, received);
+        check("CONNECT", perPacket, CONNECT_BUDGET);
+    }
+
+    @Test
+    public void subscribe()
+    {
+        assertBudget("SUBSCRIBE", SUBSCRIBE, SUBSCRIBE_BUDGET);
+    }
+
+    @Test
+    public void publish()
+    {
+        assertBudget("PUBLISH", PUBLISH, PUBLISH_BUDGET);
+    }
+
+    @Test
+    public void pingReq()
+    {
+        assertBudget("PINGREQ", PINGREQ, PINGREQ_BUDGET);
+    }
+
+    @Test
+    public void delivery()
+    {
+        final ByteBuf[] packets = new ByteBuf[WARMUP + PACKETS];
+        for (int i = 0; i < packets.length; i++) {
+            packets[i] = Unpooled.wrappedBuffer(PUBLISH);
+        }
+        for (int i = 0; i < WARMUP; i++) {
+            channel.write(packets[i], channel.voidPromise());
+        }
+        final long before = allocatedBytes();
+        for (int i = WARMUP; i < packets.length; i++) {
+            channel.write(packets[i], channel.voidPromise());
+        }
+        final long perPacket = (allocatedBytes() - before) / PACKETS;
+
+        assertEquals(packets.length, sent);
+        check("broker PUBLISH", perPacket, DELIVERY_BUDGET);
+    }
+
+    private void assertBudget(String name, byte[] packet, long budget)
+    {
+        final BinaryWebSocketFrame[] frames = new BinaryWebSocketFrame[WARMUP + PACKETS];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = frame(packet);
+        }
+        received = 0;
+        for (int i = 0; i < WARMUP; i++) {
+            channel.pipeline().fireChannelRead(frames[i]);
+        }
+        final long before = allocatedBytes();
+        for (int i = WARMUP; i < frames.length; i++) {
+            channel.pipeline().fireChannelRead(frames[i]);
+        }
+        final long perPacket = (allocatedBytes() - before) / PACKETS;
+
+        assertTrue(channel.isOpen());
+        assertEquals(frames.length, received);
+        check(name, perPacket, budget);
+    }
+
+    private static void check(String name, long perPacket, long budget)
+    {
+        assertTrue(name + " allocates " + perPacket + " bytes per packet, the budget is " + budget, perPacket <= budget);
+    }
+
+    private static BinaryWebSocketFrame frame(byte[] packet)
+    {
+        return new BinaryWebSocketFrame(Unpooled.wrappedBuffer(packet));
+    }
+
+    private static long allocatedBytes()
+    {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static class AllowAll implements AuthenticationHandler.MqttListener {
+
+        @Override
+        public boolean checkClientID(String clientID)
+        {
+            return true;
+        }
+
+        @Override
+        public boolean checkSubScribeTopic(String clientID, List<String> topic)
+        {
+            return true;
+        }
+
+        @Override
+        public boolean checkPublishTopic(String clientID, String topic)
+        {
+            return true;
+        }
+
+        @Override
+        public void onPing(String clientID)
+        {
+        }
+    }
+}
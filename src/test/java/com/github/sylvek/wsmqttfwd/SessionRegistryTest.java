@@ -0,0 +1,93 @@
+package com.github.sylvek.wsmqttfwd;
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.HttpMethod;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SessionRegistryTest {
+
+    @Test
+    public void noneKeepsBothSessions()
+    {
+        final SessionRegistry registry = new SessionRegistry(SessionRegistry.Takeover.NONE);
+        final EmbeddedChannel first = new EmbeddedChannel();
+        final EmbeddedChannel second = new EmbeddedChannel();
+
+        final SessionRegistry.Session older = registry.register("id", first);
+        final SessionRegistry.Session newer = registry.register("id", second);
+
+        assertNotNull(older);
+        assertNotNull(newer);
+        assertTrue(first.isOpen());
+        assertTrue(second.isOpen());
+        assertEquals(2, registry.count());
+        assertEquals(2, registry.get("id").size());
+        assertSame(newer, registry.get("id").get(1));
+    }
+
+    @Test
+    public void closeOldReplacesTheRegisteredSession()
+    {
+        final SessionRegistry registry = new SessionRegistry(SessionRegistry.Takeover.CLOSE_OLD);
+        final EmbeddedChannel first = new EmbeddedChannel();
+        final EmbeddedChannel second = new EmbeddedChannel();
+
+        registry.register("id", first);
+        final SessionRegistry.Session newer = registry.register("id", second);
+
+        assertNotNull(newer);
+        assertFalse(first.isOpen());
+        assertTrue(second.isOpen());
+        assertEquals(1, registry.count());
+        assertEquals(Collections.singletonList(newer), registry.get("id"));
+    }
+
+    @Test
+    public void rejectNewKeepsTheRegisteredSession()
+    {
+        final SessionRegistry registry = new SessionRegistry(SessionRegistry.Takeover.REJECT_NEW);
+        final EmbeddedChannel first = new EmbeddedChannel();
+        final EmbeddedChannel second = new EmbeddedChannel();
+
+        final SessionRegistry.Session older = registry.register("id", first);
+
+        assertNull(registry.register("id", second));
+        assertTrue(first.isOpen());
+        assertEquals(1, registry.count());
+        assertEquals(Collections.singletonList(older), registry.get("id"));
+
+        // accepted again once the registered session is closed
+        first.close();
+        assertNotNull(registry.register("id", second));
+        assertEquals(1, registry.count());
+    }
+
+    @Test
+    public void closedSessionsAreUnregistered()
+    {
+        final SessionRegistry registry = new SessionRegistry();
+        final EmbeddedChannel channel = new EmbeddedChannel();
+
+        registry.register("id", channel);
+        channel.close();
+
+        assertEquals(0, registry.count());
+        assertTrue(registry.get("id").isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void hostNamesAreRefused() throws Exception
+    {
+        new SessionRegistry().handle(HttpMethod.GET, Collections.singletonMap("address", Collections.singletonList("localhost")));
+    }
+}
@@ -0,0 +1,81 @@
+package com.github.sylvek.wsmqttfwd;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TopicMatcherTest {
+
+    @Test
+    public void exactTopics()
+    {
+        assertTrue(TopicMatcher.matches("a/b", "a/b"));
+        assertFalse(TopicMatcher.matches("a/b", "a/bc"));
+        assertFalse(TopicMatcher.matches("a/b", "a"));
+        assertFalse(TopicMatcher.matches("a", "a/b"));
+    }
+
+    @Test
+    public void singleLevelWildcard()
+    {
+        assertTrue(TopicMatcher.matches("a/+/c", "a/b/c"));
+        assertTrue(TopicMatcher.matches("a/+", "a/"));
+        assertTrue(TopicMatcher.matches("+/+", "/b"));
+        assertFalse(TopicMatcher.matches("a/+", "a/b/c"));
+        assertFalse(TopicMatcher.matches("a/+", "a"));
+        assertFalse(TopicMatcher.matches("+", "a/b"));
+    }
+
+    @Test
+    public void multiLevelWildcardMatchesTheParentLevel()
+    {
+        assertTrue(TopicMatcher.matches("a/#", "a"));
+        assertTrue(TopicMatcher.matches("a/#", "a/b/c"));
+        assertTrue(TopicMatcher.matches("+/#", "a"));
+        assertTrue(TopicMatcher.matches("#", "a/b"));
+        assertFalse(TopicMatcher.matches("a/#", "ab"));
+        assertFalse(TopicMatcher.matches("a/b/#", "a"));
+    }
+
+    @Test
+    public void dollarTopicsAreNotMatchedByALeadingWildcard()
+    {
+        assertFalse(TopicMatcher.matches("#", "$SYS/broker"));
+        assertFalse(TopicMatcher.matches("+/broker", "$SYS/broker"));
+        assertTrue(TopicMatcher.matches("$SYS/#", "$SYS/broker"));
+        assertTrue(TopicMatcher.matches("$SYS/+", "$SYS/broker"));
+    }
+
+    @Test
+    public void multiLevelWildcardCoversEverythingBelow()
+    {
+        assertTrue(TopicMatcher.covers("a/#", "a"));
+        assertTrue(TopicMatcher.covers("a/#", "a/#"));
+        assertTrue(TopicMatcher.covers("a/#", "a/+/b"));
+        assertTrue(TopicMatcher.covers("a/#", "a/b/#"));
+        assertTrue(TopicMatcher.covers("#", "+"));
+        assertFalse(TopicMatcher.covers("a/#", "b/#"));
+        assertFalse(TopicMatcher.covers("a", "a/#"));
+    }
+
+    @Test
+    public void singleLevelWildcardDoesNotCoverTheMultiLevelOne()
+    {
+        assertTrue(TopicMatcher.covers("a/+", "a/b"));
+        assertTrue(TopicMatcher.covers("a/+", "a/+"));
+        assertTrue(TopicMatcher.covers("+/b", "a/b"));
+        assertFalse(TopicMatcher.covers("a/+", "a/#"));
+        assertFalse(TopicMatcher.covers("+", "#"));
+        assertFalse(TopicMatcher.covers("a/b", "a/+"));
+        assertFalse(TopicMatcher.covers("a/+", "a/b/c"));
+    }
+
+    @Test
+    public void dollarFiltersAreNotCoveredByALeadingWildcard()
+    {
+        assertFalse(TopicMatcher.covers("#", "$SYS/#"));
+        assertFalse(TopicMatcher.covers("+/#", "$SYS/broker"));
+        assertTrue(TopicMatcher.covers("$SYS/#", "$SYS/broker"));
+    }
+}
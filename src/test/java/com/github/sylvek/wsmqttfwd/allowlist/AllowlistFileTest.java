@@ -0,0 +1,129 @@
+package com.github.sylvek.wsmqttfwd.allowlist;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AllowlistFileTest {
+
+    private static final int CLIENTS = 10000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void writtenClientIDsAreFound() throws IOException
+    {
+        final List<String> clientIDs = new ArrayList<>();
+        for (int i = 0; i < CLIENTS; i++) {
+            clientIDs.add("device-" + i);
+        }
+        // not ASCII, sorted by their unsigned bytes
+        clientIDs.add("capteur-\u00e9");
+        clientIDs.add("");
+        final File file = folder.newFile();
+        AllowlistFile.write(clientIDs, file);
+
+        final AllowlistFile allowlist = new AllowlistFile(file);
+        assertEquals(clientIDs.size(), allowlist.count());
+        for (String clientID : clientIDs) {
+            assertTrue(clientID, lookup(allowlist, clientID));
+        }
+    }
+
+    @Test
+    public void duplicatesAreWrittenOnce() throws IOException
+    {
+        final File file = folder.newFile();
+        AllowlistFile.write(Arrays.asList("b", "a", "b"), file);
+
+        assertEquals(2, new AllowlistFile(file).count());
+    }
+
+    @Test
+    public void unknownClientIDsAreMostlyRejectedByTheBloomFilter() throws IOException
+    {
+        final List<String> clientIDs = new ArrayList<>();
+        for (int i = 0; i < CLIENTS; i++) {
+            clientIDs.add("device-" + i);
+        }
+        final File file = folder.newFile();
+        AllowlistFile.write(clientIDs, file);
+        final AllowlistFile allowlist = new AllowlistFile(file);
+
+        int bloomRejected = 0;
+        for (int i = 0; i < CLIENTS; i++) {
+            final ByteBuf clientID = utf8("unknown-" + i);
+            if (!allowlist.mightContain(clientID, 0, clientID.readableBytes())) {
+                bloomRejected++;
+            }
+            assertFalse(allowlist.contains(clientID, 0, clientID.readableBytes()));
+        }
+        // about 1% of false positives
+        assertTrue(bloomRejected + " rejected by the Bloom filter", bloomRejected > CLIENTS * 95 / 100);
+    }
+
+    @Test
+    public void clientIDIsLookedUpInPlace() throws IOException
+    {
+        final File file = folder.newFile();
+        AllowlistFile.write(Arrays.asList("device-1", "device-2"), file);
+        final AllowlistFile allowlist = new AllowlistFile(file);
+
+        final ByteBuf packet = Unpooled.buffer().writeBytes(new byte[]{0, 8}).writeBytes("device-2".getBytes(StandardCharsets.UTF_8)).writeByte(0);
+        assertTrue(allowlist.mightContain(packet, 2, 8));
+        assertTrue(allowlist.contains(packet, 2, 8));
+        assertFalse(allowlist.contains(packet, 2, 7));
+    }
+
+    @Test(expected = IOException.class)
+    public void corruptEntryOffsetIsRefusedAtLoad() throws IOException
+    {
+        final File file = folder.newFile();
+        AllowlistFile.write(Arrays.asList("device-1", "device-2"), file);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            // header then one Bloom word, the first offset points past the end of the file
+            raf.seek(20 + 8);
+            raf.writeInt((int) raf.length());
+        }
+
+        new AllowlistFile(file);
+    }
+
+    @Test(expected = IOException.class)
+    public void notAnAllowlistIsRefused() throws IOException
+    {
+        final File file = folder.newFile();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.write(new byte[64]);
+        }
+
+        new AllowlistFile(file);
+    }
+
+    private static boolean lookup(AllowlistFile allowlist, String clientID)
+    {
+        final ByteBuf bytes = utf8(clientID);
+        return allowlist.mightContain(bytes, 0, bytes.readableBytes()) && allowlist.contains(bytes, 0, bytes.readableBytes());
+    }
+
+    private static ByteBuf utf8(String value)
+    {
+        return Unpooled.wrappedBuffer(value.getBytes(StandardCharsets.UTF_8));
+    }
+}